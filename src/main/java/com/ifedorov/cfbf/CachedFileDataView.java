@@ -0,0 +1,306 @@
+package com.ifedorov.cfbf;
+
+import com.google.common.base.Verify;
+import com.google.common.collect.Maps;
+import com.google.common.io.ByteStreams;
+import org.apache.commons.lang3.ArrayUtils;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.BitSet;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+public class CachedFileDataView extends FileDataView {
+
+    public static final long DEFAULT_CACHE_BUDGET = 64L * 1024 * 1024;
+    private final long cacheBudget;
+    private final LinkedHashMap<Integer, byte[]> cachedPages = new LinkedHashMap<>(16, 0.75f, true);
+    private final Map<Integer, byte[]> pinnedPages = Maps.newHashMap();
+    private final BitSet pinned = new BitSet();
+    private long hits;
+    private long misses;
+    private boolean temporary;
+
+    CachedFileDataView(Path path, FileChannel channel, int chunkSize, long cacheBudget) throws IOException {
+        super(path, channel, chunkSize);
+        Verify.verify(cacheBudget >= 0, "Cache budget cannot be negative: " + cacheBudget);
+        this.cacheBudget = cacheBudget;
+        if(fileChunks > 0) {
+            pin(0);
+        }
+    }
+
+    public static CachedFileDataView open(Path path) {
+        return open(path, DEFAULT_CACHE_BUDGET);
+    }
+
+    public static CachedFileDataView open(Path path, long cacheBudget) {
+        FileChannel channel = null;
+        try {
+            if(Files.isWritable(path)) {
+                channel = FileChannel.open(path, StandardOpenOption.READ, StandardOpenOption.WRITE);
+            } else {
+                channel = FileChannel.open(path, StandardOpenOption.READ);
+            }
+            return new CachedFileDataView(path, channel, sectorSizeOf(channel), cacheBudget);
+        } catch (IOException e) {
+            closeQuietly(channel);
+            throw new RuntimeException("Unable to open file: " + path, e);
+        }
+    }
+
+    static CachedFileDataView spool(List<DataView> chunks, InputStream is, int chunkSize, long cacheBudget) throws IOException {
+        Path path = Files.createTempFile("cfbf", ".spool");
+        FileChannel channel = null;
+        try {
+            channel = FileChannel.open(path, StandardOpenOption.READ, StandardOpenOption.WRITE);
+            for (DataView chunk : chunks) {
+                chunk.copyTo(channel);
+            }
+            ByteStreams.copy(Channels.newChannel(is), channel);
+            CachedFileDataView dataView = new CachedFileDataView(path, channel, chunkSize, cacheBudget);
+            dataView.temporary = true;
+            return dataView;
+        } catch (IOException | RuntimeException e) {
+            closeQuietly(channel);
+            Files.deleteIfExists(path);
+            throw e;
+        }
+    }
+
+    @Override
+    protected DataView fileChunk(int index) {
+        return new PageView(index);
+    }
+
+    @Override
+    public void pin(int index) {
+        super.pin(index);
+        if(index >= fileChunks || pinned.get(index)) {
+            return;
+        }
+        pinned.set(index);
+        byte[] page = cachedPages.remove(index);
+        if(page != null) {
+            pinnedPages.put(index, page);
+        }
+    }
+
+    @Override
+    public void swap(int first, int second) {
+        super.swap(first, second);
+        //Pins follow the swapped data, so the vacated chunk leaves the pinned pages once it is committed
+        boolean firstPinned = pinned.get(first);
+        boolean secondPinned = pinned.get(second);
+        pinned.clear(first);
+        pinned.clear(second);
+        if(firstPinned) {
+            pin(second);
+        }
+        if(secondPinned) {
+            pin(first);
+        }
+    }
+
+    @Override
+    public void commit() {
+        super.commit();
+        Iterator<Map.Entry<Integer, byte[]>> committedPages = pinnedPages.entrySet().iterator();
+        while(committedPages.hasNext()) {
+            Map.Entry<Integer, byte[]> page = committedPages.next();
+            if(!pinned.get(page.getKey())) {
+                cachedPages.put(page.getKey(), page.getValue());
+                committedPages.remove();
+            }
+        }
+        evict();
+    }
+
+    @Override
+    public void close() {
+        try {
+            super.close();
+        } finally {
+            if(temporary) {
+                try {
+                    Files.deleteIfExists(path);
+                } catch (IOException e) {
+                    throw new RuntimeException("Unable to delete temporary file: " + path, e);
+                }
+            }
+        }
+    }
+
+    public long getCacheHits() {
+        return hits;
+    }
+
+    public long getCacheMisses() {
+        return misses;
+    }
+
+    public long getCacheBudget() {
+        return cacheBudget;
+    }
+
+    public long getCachedBytes() {
+        return (long) cachedPages.size() * chunkSize;
+    }
+
+    public long getPinnedBytes() {
+        return (long) pinnedPages.size() * chunkSize;
+    }
+
+    private byte[] page(int index) {
+        byte[] page = pinnedPages.get(index);
+        if(page == null) {
+            page = cachedPages.get(index);
+        }
+        if(page != null) {
+            hits++;
+            return page;
+        }
+        misses++;
+        page = load(index);
+        if(pinned.get(index) || dirty.get(index)) {
+            pinnedPages.put(index, page);
+        } else {
+            cachedPages.put(index, page);
+            evict();
+        }
+        return page;
+    }
+
+    private byte[] dirtyPage(int index) {
+        byte[] page = page(index);
+        if(!dirty.get(index)) {
+            markDirty(index);
+            cachedPages.remove(index);
+            pinnedPages.put(index, page);
+        }
+        return page;
+    }
+
+    private byte[] load(int index) {
+        byte[] page = new byte[chunkSize];
+        ByteBuffer buffer = ByteBuffer.wrap(page);
+        long position = (long) index * chunkSize;
+        try {
+            while(buffer.hasRemaining()) {
+                if(channel.read(buffer, position + buffer.position()) < 0) {
+                    throw new IOException("Unexpected end of file at position " + (position + buffer.position()));
+                }
+            }
+        } catch (IOException e) {
+            throw new RuntimeException("Unable to read chunk " + index, e);
+        }
+        return page;
+    }
+
+    private static boolean containsAt(byte[] page, int position, byte[] bytes) {
+        for (int i = 0; i < bytes.length; i++) {
+            if(page[position + i] != bytes[i]) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private void evict() {
+        Iterator<byte[]> leastRecentlyUsed = cachedPages.values().iterator();
+        while(getCachedBytes() > cacheBudget && leastRecentlyUsed.hasNext()) {
+            leastRecentlyUsed.next();
+            leastRecentlyUsed.remove();
+        }
+    }
+
+    private class PageView implements DataView {
+
+        private final int index;
+
+        private PageView(int index) {
+            this.index = index;
+        }
+
+        @Override
+        public DataView writeAt(int position, byte[] bytes) {
+            if(position < 0 || position + bytes.length > chunkSize) {
+                throw new IndexOutOfBoundsException(String.format("%s + %s > %s", bytes.length, position, chunkSize));
+            }
+            if(!dirty.get(index) && containsAt(page(index), position, bytes)) {
+                return this;
+            }
+            System.arraycopy(bytes, 0, dirtyPage(index), position, bytes.length);
+            return this;
+        }
+
+        @Override
+        public int getSize() {
+            return chunkSize;
+        }
+
+        @Override
+        public byte[] getData() {
+            return Utils.copy(page(index));
+        }
+
+        @Override
+        public DataView subView(int start, int end) {
+            if(end < start) {
+                throw new IndexOutOfBoundsException(String.format("end < start (%s < %s)", end, start));
+            }
+            if(start < 0) {
+                throw new IndexOutOfBoundsException(String.format("subView start: %s, view start: %s", start, 0));
+            }
+            if(end > chunkSize) {
+                throw new IndexOutOfBoundsException(String.format("subView end: %s, view end: %s", end, chunkSize));
+            }
+            return new ReferencingSubView(this, start, end);
+        }
+
+        @Override
+        public DataView subView(int start) {
+            return subView(start, chunkSize);
+        }
+
+        @Override
+        public DataView allocate(int length) {
+            throw new UnsupportedOperationException();
+        }
+
+        @Override
+        public DataView fill(byte[] filler) {
+            Utils.fill(dirtyPage(index), filler);
+            return this;
+        }
+
+        @Override
+        public ByteBuffer asByteBuffer() {
+            return ByteBuffer.wrap(page(index));
+        }
+
+        @Override
+        public byte[] readAt(int position, int length) {
+            return ArrayUtils.subarray(page(index), position, position + length);
+        }
+
+        @Override
+        public void copyTo(OutputStream os) {
+            try {
+                os.write(page(index));
+            } catch (IOException e) {
+                throw new RuntimeException("Unable to write data to Output Stream", e);
+            }
+        }
+    }
+}
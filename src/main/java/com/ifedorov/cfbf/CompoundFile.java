@@ -1,5 +1,6 @@
 package com.ifedorov.cfbf;
 
+import com.ifedorov.cfbf.alloc.AllocationPolicy;
 import com.ifedorov.cfbf.alloc.DIFAT;
 import com.ifedorov.cfbf.alloc.FAT;
 import com.ifedorov.cfbf.alloc.FATtoDIFATFacade;
@@ -10,17 +11,33 @@ import com.ifedorov.cfbf.stream.RegularStreamRW;
 import com.ifedorov.cfbf.stream.StreamRW;
 
 import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.WritableByteChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.concurrent.CompletableFuture;
 import java.util.function.Consumer;
 
-public class CompoundFile {
+public class CompoundFile implements Closeable {
 
     private final Header header;
     private final Sectors sectors;
     private final DirectoryEntryChain directoryEntryChain;
+    private final DIFAT difat;
+    private final FAT fat;
+    private final MiniFAT miniFat;
+    private final MiniStreamRW miniStreamRW;
+    private final StreamHolder streamHolder;
     private DataView dataView;
 
     public CompoundFile() {
-       this(empty());
+        this(Header.Version.V3);
+    }
+
+    public CompoundFile(Header.Version version) {
+        this(empty(DataView.empty(version.getSectorSize()), version));
         directoryEntryChain.createRootStorage();
     }
 
@@ -29,12 +46,12 @@ public class CompoundFile {
         this.header = new Header(dataView.subView(0, Header.HEADER_LENGTH));
         this.sectors = new Sectors(dataView, header);
         FATtoDIFATFacade faTtoDIFATFacade = new FATtoDIFATFacade();
-        DIFAT difat = new DIFAT(sectors, header, faTtoDIFATFacade);
+        this.difat = new DIFAT(sectors, header, faTtoDIFATFacade);
         faTtoDIFATFacade.setDifat(difat);
-        FAT fat = new FAT(sectors, header, faTtoDIFATFacade);
+        this.fat = new FAT(sectors, header, faTtoDIFATFacade);
         faTtoDIFATFacade.setFat(fat);
-        MiniFAT miniFat = new MiniFAT(sectors, header, fat);
-        MiniStreamRW miniStreamRW = new MiniStreamRW(miniFat, fat, getMiniStreamFirstSectorLocation(), getMiniStreamLength(), sectors, header);
+        this.miniFat = new MiniFAT(sectors, header, fat);
+        this.miniStreamRW = new MiniStreamRW(miniFat, fat, getMiniStreamFirstSectorLocation(), getMiniStreamLength(), sectors, header);
         StreamRW listenableMiniStream = new StreamRW() {
             @Override
             public byte[] read(int startingSector, int length) {
@@ -42,48 +59,88 @@ public class CompoundFile {
             }
 
             @Override
-            public byte[] read(int startingSector, int from, int to) {
+            public byte[] read(int startingSector, long from, long to) {
                 return miniStreamRW.read(startingSector, from, to);
             }
 
+            @Override
+            public CompletableFuture<ByteBuffer> readAsync(int startingSector, long fromIncl, long toExcl) {
+                return miniStreamRW.readAsync(startingSector, fromIncl, toExcl);
+            }
+
             @Override
             public int write(byte[] data) {
                 int firstSectorLocation = miniStreamRW.write(data);
-                setMiniStreamFirstSectorLocation(miniStreamRW.getMiniStreamFirstSectorPosition());
-                setMiniStreamLength(miniStreamRW.getMiniStreamLength());
+                updateMiniStreamLocation();
                 return firstSectorLocation;
             }
 
             @Override
-            public void writeAt(int startingSector, int position, byte[] data) {
+            public void writeAt(int startingSector, long position, byte[] data) {
                 miniStreamRW.writeAt(startingSector, position, data);
             }
 
             @Override
-            public int append(int startingSector, int currentSize, byte[] data) {
+            public int append(int startingSector, long currentSize, byte[] data) {
                 int firstSectorLocation = miniStreamRW.append(startingSector, currentSize, data);
-                setMiniStreamFirstSectorLocation(miniStreamRW.getMiniStreamFirstSectorPosition());
-                setMiniStreamLength(miniStreamRW.getMiniStreamLength());
+                updateMiniStreamLocation();
                 return firstSectorLocation;
             }
 
             @Override
-            public void copyTo(int startingLocation, OutputStream os) {
-                miniStreamRW.copyTo(startingLocation, os);
+            public void truncate(int startingSector, long size) {
+                miniStreamRW.truncate(startingSector, size);
+                updateMiniStreamLocation();
+            }
+
+            @Override
+            public void free(int startingSector) {
+                miniStreamRW.free(startingSector);
+                updateMiniStreamLocation();
+            }
+
+            @Override
+            public void copyTo(int startingLocation, long length, WritableByteChannel channel) {
+                miniStreamRW.copyTo(startingLocation, length, channel);
             }
         };
-        StreamHolder streamReader = new StreamHolder(
+        streamHolder = new StreamHolder(
                 new RegularStreamRW(fat, sectors, header),
                 listenableMiniStream,
                 header.getMiniStreamCutoffSize()
         );
 
-        directoryEntryChain = new DirectoryEntryChain(sectors, fat, header, streamReader);
+        directoryEntryChain = new DirectoryEntryChain(sectors, fat, header, streamHolder);
+    }
+
+    public static CompoundFile open(Path path) {
+        return new CompoundFile(MappedFileDataView.map(path));
+    }
+
+    public static CompoundFile from(ByteBuffer buffer) {
+        return new CompoundFile(DataView.from(buffer));
+    }
+
+    public static CompoundFile from(InputStream is, long heapThreshold) {
+        return new CompoundFile(DataView.from(is, heapThreshold));
+    }
+
+    public static CompoundFile offHeap() {
+        return offHeap(Header.Version.V3);
+    }
+
+    public static CompoundFile offHeap(Header.Version version) {
+        CompoundFile compoundFile = new CompoundFile(empty(DataView.emptyOffHeap(version.getSectorSize()), version));
+        compoundFile.directoryEntryChain.createRootStorage();
+        return compoundFile;
+    }
+
+    public static CompoundFile openCached(Path path, long cacheBudget) {
+        return new CompoundFile(CachedFileDataView.open(path, cacheBudget));
     }
 
-    private static DataView empty() {
-        DataView dataView = DataView.empty();
-        Header header = Header.empty(dataView.allocate(Header.HEADER_LENGTH));
+    private static DataView empty(DataView dataView, Header.Version version) {
+        Header.empty(dataView.allocate(version.getSectorSize()).subView(0, Header.HEADER_LENGTH), version);
         return dataView;
     }
 
@@ -103,6 +160,11 @@ public class CompoundFile {
         }
     }
 
+    private void updateMiniStreamLocation() {
+        setMiniStreamFirstSectorLocation(miniStreamRW.getMiniStreamFirstSectorPosition());
+        setMiniStreamLength(miniStreamRW.getMiniStreamLength());
+    }
+
     private void setMiniStreamFirstSectorLocation(int position) {
         sectors.sector(header.getFirstDirectorySectorLocation())
                 .subView(DirectoryEntry.FLAG_POSITION.STARTING_SECTOR_LOCATION, DirectoryEntry.FLAG_POSITION.STARTING_SECTOR_LOCATION + 4)
@@ -115,24 +177,120 @@ public class CompoundFile {
                 .writeAt(0, Utils.toBytesLE(size, 4));
     }
 
+    DirectoryEntryChain getDirectoryEntryChain() {
+        return directoryEntryChain;
+    }
+
     public RootStorageDirectoryEntry getRootStorage() {
         return directoryEntryChain.getRootStorage();
     }
 
+    public void setAllocationPolicy(AllocationPolicy allocationPolicy) {
+        sectors.setAllocationPolicy(allocationPolicy);
+        miniStreamRW.setAllocationPolicy(allocationPolicy);
+    }
+
+
+    public void commit() {
+        if(!(dataView instanceof FileDataView)) {
+            throw new IllegalStateException("Compound file is not backed by a file");
+        }
+        streamHolder.verifyReservationsFilled();
+        //Trimming the mini stream changes FAT and the root entry, which belong to this commit
+        miniStreamRW.commit();
+        updateMiniStreamLocation();
+        //Stream sectors rewritten in place are still referenced by the committed header, so they get shadow copies too
+        directoryEntryChain.relocateModifiedStreamSectors();
+        if(miniStreamRW.relocateModifiedSectors()) {
+            updateMiniStreamLocation();
+        }
+        directoryEntryChain.relocateModifiedSectors();
+        miniFat.relocateModifiedSectors();
+        boolean relocated;
+        do {
+            relocated = fat.relocateModifiedFatSectors();
+            relocated |= difat.relocateModifiedSectors();
+        } while(relocated);
+        sectors.commit();
+    }
 
     public void saveTo(File outputFile) {
-        try(FileOutputStream os = new FileOutputStream(outputFile)) {
-            os.write(dataView.getData());
+        saveTo(outputFile.toPath());
+    }
+
+    public void saveTo(Path outputFile) {
+        if(dataView instanceof FileDataView && isSameFile(((FileDataView) dataView).getPath(), outputFile)) {
+            throw new IllegalArgumentException("Unable to save compound file over its own source: " + outputFile);
+        }
+        try(FileChannel channel = FileChannel.open(outputFile, StandardOpenOption.CREATE, StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING)) {
+            saveTo(channel);
         } catch (IOException e) {
             throw new RuntimeException("Unable to save msg to file: ",e );
         }
     }
 
+    public void saveTo(WritableByteChannel channel) {
+        streamHolder.verifyReservationsFilled();
+        dataView.copyTo(channel);
+    }
+
     public void saveTo(OutputStream outputStream) {
+        streamHolder.verifyReservationsFilled();
+        dataView.copyTo(outputStream);
+    }
+
+    public long compact(Path target) {
+        if(dataView instanceof FileDataView && isSameFile(((FileDataView) dataView).getPath(), target)) {
+            throw new IllegalArgumentException("Unable to compact compound file over its own source: " + target);
+        }
+        try(FileChannel channel = FileChannel.open(target, StandardOpenOption.CREATE, StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING)) {
+            return compact(channel);
+        } catch (IOException e) {
+            throw new RuntimeException("Unable to compact compound file to: " + target, e);
+        }
+    }
+
+    public long compact(WritableByteChannel target) {
+        CompoundFileBuilder builder = new CompoundFileBuilder(header.getVersion());
+        RootStorageDirectoryEntry rootStorage = getRootStorage();
+        builder.copyAttributes("", rootStorage);
+        rootStorage.eachChild(compactConsumer(builder, ""));
+        return (long) (sectors.getNumberOfSectors() + 1) * header.getSectorShift() - builder.writeTo(target);
+    }
+
+    private Consumer<DirectoryEntry> compactConsumer(CompoundFileBuilder builder, String parentPath) {
+        return new Consumer<DirectoryEntry>() {
+            @Override
+            public void accept(DirectoryEntry directoryEntry) {
+                String path = parentPath + CompoundFileBuilder.PATH_SEPARATOR + directoryEntry.getDirectoryEntryName();
+                if(directoryEntry instanceof StorageDirectoryEntry) {
+                    builder.storage(path);
+                    ((StorageDirectoryEntry) directoryEntry).eachChild(compactConsumer(builder, path));
+                } else {
+                    StreamDirectoryEntry stream = (StreamDirectoryEntry) directoryEntry;
+                    builder.stream(path, stream.hasStreamData() ? stream.getStreamSize() : 0, stream::getInputStream);
+                }
+                builder.copyAttributes(path, directoryEntry);
+            }
+        };
+    }
+
+    private static boolean isSameFile(Path source, Path target) {
         try {
-            outputStream.write(dataView.getData());
+            return Files.exists(target) && Files.isSameFile(source, target);
         } catch (IOException e) {
-            throw new RuntimeException("Unable to save msg to file: ",e );
+            return false;
+        }
+    }
+
+    @Override
+    public void close() {
+        if(dataView instanceof Closeable) {
+            try {
+                ((Closeable) dataView).close();
+            } catch (IOException e) {
+                throw new RuntimeException("Unable to close compound file", e);
+            }
         }
     }
 
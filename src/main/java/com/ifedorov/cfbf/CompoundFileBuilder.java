@@ -0,0 +1,250 @@
+package com.ifedorov.cfbf;
+
+import com.google.common.base.Splitter;
+import com.google.common.base.Strings;
+import com.google.common.base.Verify;
+import com.google.common.collect.Lists;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.channels.WritableByteChannel;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.Comparator;
+import java.util.List;
+import java.util.TreeMap;
+import java.util.function.Supplier;
+
+public class CompoundFileBuilder {
+
+    public static final String PATH_SEPARATOR = "/";
+    public static final Comparator<String> NAME_ORDER = Comparator.<String>comparingInt(String::length).thenComparing(name -> name.toUpperCase());
+    private final Header.Version version;
+    private final Node root = new Node(RootStorageDirectoryEntry.NAME, DirectoryEntry.ObjectType.RootStorage, 0, null);
+
+    public CompoundFileBuilder() {
+        this(Header.Version.V3);
+    }
+
+    public CompoundFileBuilder(Header.Version version) {
+        this.version = version;
+    }
+
+    public CompoundFileBuilder storage(String path) {
+        storageAt(Splitter.on(PATH_SEPARATOR).omitEmptyStrings().splitToList(path));
+        return this;
+    }
+
+    public CompoundFileBuilder stream(String path, byte[] data) {
+        return stream(path, data.length, () -> new ByteArrayInputStream(data));
+    }
+
+    public CompoundFileBuilder stream(String path, long size, Supplier<InputStream> data) {
+        Verify.verify(size >= 0, "Stream size cannot be negative: " + size);
+        List<String> names = Splitter.on(PATH_SEPARATOR).omitEmptyStrings().splitToList(path);
+        if(names.isEmpty()) {
+            throw new IllegalArgumentException("Stream path should contain a name: " + path);
+        }
+        Node parent = storageAt(names.subList(0, names.size() - 1));
+        String name = names.get(names.size() - 1);
+        if(parent.children.containsKey(name)) {
+            throw new IllegalArgumentException("Directory entry already exists: " + path);
+        }
+        parent.children.put(name, new Node(name, DirectoryEntry.ObjectType.Stream, size, data));
+        return this;
+    }
+
+    CompoundFileBuilder copyAttributes(String path, DirectoryEntry source) {
+        Node current = root;
+        for (String name : Splitter.on(PATH_SEPARATOR).omitEmptyStrings().split(path)) {
+            current = current.children.get(name);
+            if(current == null) {
+                throw new IllegalArgumentException("Directory entry does not exist: " + path);
+            }
+        }
+        current.attributes = source.view.subView(DirectoryEntry.FLAG_POSITION.CLSID, DirectoryEntry.FLAG_POSITION.STARTING_SECTOR_LOCATION).getData();
+        return this;
+    }
+
+    private Node storageAt(List<String> names) {
+        Node current = root;
+        for (String name : names) {
+            Node child = current.children.get(name);
+            if(child == null) {
+                child = new Node(name, DirectoryEntry.ObjectType.Storage, 0, null);
+                current.children.put(name, child);
+            } else if(child.type != DirectoryEntry.ObjectType.Storage) {
+                throw new IllegalArgumentException("Directory entry is not a storage: " + name);
+            }
+            current = child;
+        }
+        return current;
+    }
+
+    public long writeTo(Path path) {
+        try(FileChannel channel = FileChannel.open(path, StandardOpenOption.CREATE, StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING)) {
+            return writeTo(channel);
+        } catch (IOException e) {
+            throw new RuntimeException("Unable to write compound file: " + path, e);
+        }
+    }
+
+    public long writeTo(OutputStream os) {
+        return writeTo(Channels.newChannel(os));
+    }
+
+    public long writeTo(WritableByteChannel channel) {
+        List<Node> entries = Lists.newArrayList();
+        assignIds(root, entries);
+        Directory directory = new Directory(entries);
+        try {
+            SectorLayout plan = new SectorLayout(version, null);
+            writeStreams(plan, entries, directory);
+            plan.finish(directory);
+            Utils.writeFully(channel, plan.header());
+            SectorLayout layout = new SectorLayout(version, channel);
+            writeStreams(layout, entries, directory);
+            layout.finish(directory);
+            Verify.verify(layout.getSectorCount() == plan.getSectorCount(), "Stream data does not match precomputed layout");
+            return (long) (layout.getSectorCount() + 1) * version.getSectorSize();
+        } catch (IOException e) {
+            throw new RuntimeException("Unable to write compound file", e);
+        }
+    }
+
+    public CompoundFile build() {
+        ByteArrayOutputStream os = new ByteArrayOutputStream();
+        writeTo(os);
+        return new CompoundFile(DataView.from(os.toByteArray()));
+    }
+
+    private void assignIds(Node storage, List<Node> entries) {
+        storage.id = entries.size();
+        entries.add(storage);
+        List<Node> children = Lists.newArrayList(storage.children.values());
+        storage.child = siblingTree(children, 0, children.size(), 0, redDepth(children.size()));
+        for (Node child : children) {
+            if(child.type == DirectoryEntry.ObjectType.Storage) {
+                assignIds(child, entries);
+            } else {
+                child.id = entries.size();
+                entries.add(child);
+            }
+        }
+    }
+
+    private static int redDepth(int siblings) {
+        int depth = 31 - Integer.numberOfLeadingZeros(siblings);
+        return siblings == (1 << (depth + 1)) - 1 ? -1 : depth;
+    }
+
+    private static Node siblingTree(List<Node> sorted, int fromIncl, int toExcl, int depth, int redDepth) {
+        if(fromIncl >= toExcl) {
+            return null;
+        }
+        int middle = (fromIncl + toExcl) >>> 1;
+        Node node = sorted.get(middle);
+        node.color = depth == redDepth ? DirectoryEntry.ColorFlag.RED : DirectoryEntry.ColorFlag.BLACK;
+        node.left = siblingTree(sorted, fromIncl, middle, depth + 1, redDepth);
+        node.right = siblingTree(sorted, middle + 1, toExcl, depth + 1, redDepth);
+        return node;
+    }
+
+    private void writeStreams(SectorLayout layout, List<Node> entries, Directory directory) throws IOException {
+        for (boolean regular : new boolean[]{true, false}) {
+            for (Node entry : entries) {
+                if(entry.type == DirectoryEntry.ObjectType.Stream && entry.size > 0 && (entry.size >= layout.getMiniStreamCutoffSize()) == regular) {
+                    try(InputStream data = layout.isDryRun() ? null : entry.data.get()) {
+                        directory.setStream(entry.id, layout.write(entry.size, data), entry.size);
+                    }
+                }
+            }
+        }
+    }
+
+    private static class Node {
+        private final String name;
+        private final DirectoryEntry.ObjectType type;
+        private final long size;
+        private final Supplier<InputStream> data;
+        private final TreeMap<String, Node> children = new TreeMap<>(NAME_ORDER);
+        private DirectoryEntry.ColorFlag color = DirectoryEntry.ColorFlag.BLACK;
+        private Node left;
+        private Node right;
+        private Node child;
+        private byte[] attributes;
+        private int id;
+
+        private Node(String name, DirectoryEntry.ObjectType type, long size, Supplier<InputStream> data) {
+            if(Strings.isNullOrEmpty(name) || name.length() > DirectoryEntry.ENTRY_NAME_MAXIMUM_LENGTH_UTF16_STRING) {
+                throw new IllegalArgumentException("Directory Entry name should contain from 1 to 31 UTF-16 characters: " + name);
+            }
+            this.name = name;
+            this.type = type;
+            this.size = size;
+            this.data = data;
+        }
+    }
+
+    private class Directory implements SectorLayout.Directory {
+
+        private final int numberOfSectors;
+        private final DataView view;
+
+        private Directory(List<Node> entries) {
+            int entriesInOneSector = version.getSectorSize() / DirectoryEntry.ENTRY_LENGTH;
+            this.numberOfSectors = (entries.size() + entriesInOneSector - 1) / entriesInOneSector;
+            this.view = new DataView.SimpleDataView(new byte[numberOfSectors * version.getSectorSize()]).fill(Utils.FREESECT_MARK_OR_NOSTREAM);
+            for (Node entry : entries) {
+                DataView entryView = entryView(entry.id);
+                if(entry.type == DirectoryEntry.ObjectType.RootStorage) {
+                    new RootStorageDirectoryEntry.Builder(entry.id, null, entryView);
+                } else if(entry.type == DirectoryEntry.ObjectType.Storage) {
+                    new StorageDirectoryEntry.Builder(entry.id, null, entryView).name(entry.name).color(entry.color);
+                } else {
+                    new StreamDirectoryEntry.Builder(entry.id, null, entryView, null).name(entry.name).color(entry.color);
+                }
+                DirectoryEntry.setLeftSibling(entryView, idOf(entry.left));
+                DirectoryEntry.setRightSibling(entryView, idOf(entry.right));
+                DirectoryEntry.setChild(entryView, idOf(entry.child));
+                if(entry.attributes != null) {
+                    entryView.writeAt(DirectoryEntry.FLAG_POSITION.CLSID, entry.attributes);
+                }
+            }
+        }
+
+        private int idOf(Node node) {
+            return node == null ? Utils.FREESECT_MARK_OR_NOSTREAM_INT : node.id;
+        }
+
+        private DataView entryView(int id) {
+            return view.subView(id * DirectoryEntry.ENTRY_LENGTH, (id + 1) * DirectoryEntry.ENTRY_LENGTH);
+        }
+
+        private void setStream(int id, int startingSector, long size) {
+            DataView entryView = entryView(id);
+            entryView.subView(DirectoryEntry.FLAG_POSITION.STARTING_SECTOR_LOCATION, DirectoryEntry.FLAG_POSITION.STARTING_SECTOR_LOCATION + 4).writeAt(0, Utils.toBytesLE(startingSector, 4));
+            entryView.subView(DirectoryEntry.FLAG_POSITION.STREAM_SIZE, DirectoryEntry.FLAG_POSITION.STREAM_SIZE + 8).writeAt(0, Utils.toBytesLE(size, 8));
+        }
+
+        @Override
+        public int getNumberOfSectors() {
+            return numberOfSectors;
+        }
+
+        @Override
+        public void setMiniStream(int startingSector, long size) {
+            setStream(RootStorageDirectoryEntry.ID, startingSector, size);
+        }
+
+        @Override
+        public void copyTo(WritableByteChannel channel) {
+            view.copyTo(channel);
+        }
+    }
+}
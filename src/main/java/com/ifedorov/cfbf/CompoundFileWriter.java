@@ -0,0 +1,237 @@
+package com.ifedorov.cfbf;
+
+import com.google.common.base.Verify;
+import com.google.common.collect.Lists;
+import com.google.common.io.ByteStreams;
+
+import java.io.ByteArrayInputStream;
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.SequenceInputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.channels.SeekableByteChannel;
+import java.nio.channels.WritableByteChannel;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.List;
+import java.util.function.Supplier;
+
+public class CompoundFileWriter implements Closeable {
+
+    private final Header.Version version;
+    private final int sectorSize;
+    private final WritableByteChannel channel;
+    private final SeekableByteChannel seekableChannel;
+    private final long headerPosition;
+    private final boolean ownsChannel;
+    private final CompoundFile directory;
+    private final List<PendingStream> pendingStreams = Lists.newArrayList();
+    private SectorLayout layout;
+    private boolean closed;
+
+    private CompoundFileWriter(WritableByteChannel channel, Header.Version version, boolean ownsChannel) {
+        this.version = version;
+        this.sectorSize = version.getSectorSize();
+        this.channel = channel;
+        this.ownsChannel = ownsChannel;
+        this.directory = new CompoundFile(version);
+        if(channel instanceof SeekableByteChannel) {
+            this.seekableChannel = (SeekableByteChannel) channel;
+            try {
+                this.headerPosition = seekableChannel.position();
+            } catch (IOException e) {
+                throw new RuntimeException("Unable to get channel position", e);
+            }
+            Utils.writeFully(channel, ByteBuffer.allocate(sectorSize));
+            this.layout = new SectorLayout(version, channel);
+        } else {
+            this.seekableChannel = null;
+            this.headerPosition = 0;
+        }
+    }
+
+    public static CompoundFileWriter create(Path path) {
+        return create(path, Header.Version.V3);
+    }
+
+    public static CompoundFileWriter create(Path path, Header.Version version) {
+        FileChannel channel = null;
+        try {
+            channel = FileChannel.open(path, StandardOpenOption.CREATE, StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING);
+            return new CompoundFileWriter(channel, version, true);
+        } catch (IOException | RuntimeException e) {
+            FileDataView.closeQuietly(channel);
+            throw new RuntimeException("Unable to create file: " + path, e);
+        }
+    }
+
+    public static CompoundFileWriter create(WritableByteChannel channel) {
+        return create(channel, Header.Version.V3);
+    }
+
+    public static CompoundFileWriter create(WritableByteChannel channel, Header.Version version) {
+        return new CompoundFileWriter(channel, version, false);
+    }
+
+    public static CompoundFileWriter create(OutputStream os) {
+        return create(os, Header.Version.V3);
+    }
+
+    public static CompoundFileWriter create(OutputStream os, Header.Version version) {
+        return new CompoundFileWriter(Channels.newChannel(os), version, false);
+    }
+
+    public Storage getRootStorage() {
+        return new Storage(directory.getRootStorage());
+    }
+
+    public boolean isSequential() {
+        return seekableChannel == null;
+    }
+
+    @Override
+    public void close() {
+        if(closed) {
+            return;
+        }
+        closed = true;
+        try {
+            if(isSequential()) {
+                SectorLayout plan = new SectorLayout(version, null);
+                pendingStreams.forEach(stream -> write(plan, stream));
+                plan.finish(new Directory());
+                Utils.writeFully(channel, plan.header());
+                layout = new SectorLayout(version, channel);
+                pendingStreams.forEach(stream -> write(layout, stream));
+                layout.finish(new Directory());
+                Verify.verify(layout.getSectorCount() == plan.getSectorCount(), "Stream data does not match precomputed layout");
+            } else {
+                layout.finish(new Directory());
+                long endPosition = seekableChannel.position();
+                seekableChannel.position(headerPosition);
+                Utils.writeFully(channel, layout.header());
+                seekableChannel.position(endPosition);
+            }
+        } catch (IOException e) {
+            throw new RuntimeException("Unable to write compound file", e);
+        } finally {
+            if(ownsChannel) {
+                try {
+                    channel.close();
+                } catch (IOException e) {
+                    throw new RuntimeException("Unable to close compound file", e);
+                }
+            }
+        }
+    }
+
+    private void write(SectorLayout layout, PendingStream stream) {
+        try(InputStream data = stream.size == 0 || layout.isDryRun() ? null : stream.data.get()) {
+            stream.entry.setStreamStartingSector(layout.write(stream.size, data));
+            stream.entry.setStreamSize(stream.size);
+        } catch (IOException e) {
+            throw new RuntimeException("Unable to read data of stream " + stream.entry.getDirectoryEntryName(), e);
+        }
+    }
+
+    private void write(StreamDirectoryEntry entry, InputStream data) {
+        try {
+            byte[] head = new byte[layout.getMiniStreamCutoffSize()];
+            int headLength = ByteStreams.read(data, head, 0, head.length);
+            if(headLength < head.length) {
+                entry.setStreamStartingSector(layout.write(headLength, new ByteArrayInputStream(head, 0, headLength)));
+                entry.setStreamSize(headLength);
+            } else {
+                entry.setStreamStartingSector(layout.getSectorCount());
+                entry.setStreamSize(layout.writeRegular(new SequenceInputStream(new ByteArrayInputStream(head), data), -1));
+            }
+        } catch (IOException e) {
+            throw new RuntimeException("Unable to read data of stream " + entry.getDirectoryEntryName(), e);
+        }
+    }
+
+    private void verifyOpen() {
+        if(closed) {
+            throw new IllegalStateException("Compound file writer is already closed");
+        }
+    }
+
+    public class Storage {
+
+        private final StorageDirectoryEntry entry;
+
+        private Storage(StorageDirectoryEntry entry) {
+            this.entry = entry;
+        }
+
+        public String getName() {
+            return entry.getDirectoryEntryName();
+        }
+
+        public Storage addStorage(String name) {
+            verifyOpen();
+            return new Storage(entry.addStorage(name));
+        }
+
+        public void addStream(String name, byte[] data) {
+            addStream(name, data.length, () -> new ByteArrayInputStream(data));
+        }
+
+        public void addStream(String name, long size, Supplier<InputStream> data) {
+            verifyOpen();
+            Verify.verify(size >= 0, "Stream size cannot be negative: " + size);
+            PendingStream stream = new PendingStream(entry.addStream(name, new byte[0]), size, data);
+            if(isSequential()) {
+                pendingStreams.add(stream);
+            } else {
+                write(layout, stream);
+            }
+        }
+
+        public void addStream(String name, InputStream data) {
+            verifyOpen();
+            if(isSequential()) {
+                throw new IllegalStateException("Stream size should be known in advance when writing to a non-seekable channel");
+            }
+            write(entry.addStream(name, new byte[0]), data);
+        }
+    }
+
+    private static class PendingStream {
+        private final StreamDirectoryEntry entry;
+        private final long size;
+        private final Supplier<InputStream> data;
+
+        private PendingStream(StreamDirectoryEntry entry, long size, Supplier<InputStream> data) {
+            this.entry = entry;
+            this.size = size;
+            this.data = data;
+        }
+    }
+
+    private class Directory implements SectorLayout.Directory {
+
+        private final DirectoryEntryChain directoryEntryChain = directory.getDirectoryEntryChain();
+
+        @Override
+        public int getNumberOfSectors() {
+            return directoryEntryChain.getNumberOfSectors();
+        }
+
+        @Override
+        public void setMiniStream(int startingSector, long size) {
+            RootStorageDirectoryEntry root = directory.getRootStorage();
+            root.setStreamStartingSector(startingSector);
+            root.view.subView(DirectoryEntry.FLAG_POSITION.STREAM_SIZE, DirectoryEntry.FLAG_POSITION.STREAM_SIZE + 8).writeAt(0, Utils.toBytesLE(size, 8));
+        }
+
+        @Override
+        public void copyTo(WritableByteChannel channel) {
+            directoryEntryChain.copyTo(channel);
+        }
+    }
+}
@@ -1,26 +1,30 @@
 package com.ifedorov.cfbf;
 
 import com.google.common.base.Verify;
-import com.google.common.collect.Lists;
+import com.google.common.primitives.Ints;
 
 import java.io.OutputStream;
-import java.util.Arrays;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
 import java.util.List;
+import java.util.function.IntConsumer;
 
 public class DIFATSector implements Sector {
 
     private Sector delegate;
-    private List<Integer> fatSectors = Lists.newArrayList();
+    private final int fatSectorsLimit;
+    private final int nextDifatSectorPosition;
+    private final int[] fatSectors;
+    private int numberOfFatSectors;
 
     public DIFATSector(Sector delegate) {
         this.delegate = delegate;
-        for (int i = 0; i < delegate.getSize() - 4 - 1; i+=4) {
-            byte[] fatSectorPosition = delegate.subView(i, i + 4).getData();
-            if(Arrays.equals(fatSectorPosition, Utils.FREESECT_MARK_OR_NOSTREAM)) {
-                break;
-            } else {
-                fatSectors.add(Utils.toInt(fatSectorPosition));
-            }
+        this.nextDifatSectorPosition = delegate.getSize() - 4;
+        this.fatSectorsLimit = nextDifatSectorPosition / 4;
+        this.fatSectors = new int[fatSectorsLimit];
+        ByteBuffer.wrap(delegate.getData()).order(ByteOrder.LITTLE_ENDIAN).asIntBuffer().get(fatSectors);
+        while(numberOfFatSectors < fatSectorsLimit && fatSectors[numberOfFatSectors] != Utils.FREESECT_MARK_OR_NOSTREAM_INT) {
+            numberOfFatSectors++;
         }
     }
 
@@ -31,30 +35,49 @@ public class DIFATSector implements Sector {
 
     @Override
     public DataView writeAt(int position, byte[] bytes) {
-        Verify.verify(!Utils.isEndOfChain(bytes) || position == 508);
-        Verify.verify(!Utils.isFreeSectOrNoStream(bytes) || fatSectors.size() <= position / 4);
-        if(!Utils.isEndOfChain(bytes) && !Utils.isFreeSectOrNoStream(bytes) && position != 508) {
-            Verify.verify(fatSectors.size() == position / 4);
+        Verify.verify(!Utils.isEndOfChain(bytes) || position == nextDifatSectorPosition);
+        Verify.verify(!Utils.isFreeSectOrNoStream(bytes) || numberOfFatSectors <= position / 4);
+        if(!Utils.isEndOfChain(bytes) && !Utils.isFreeSectOrNoStream(bytes) && position != nextDifatSectorPosition) {
+            Verify.verify(numberOfFatSectors == position / 4);
+        }
+        if(position != nextDifatSectorPosition) {
+            Verify.verify(numberOfFatSectors < fatSectorsLimit, "DIFAT sector cannot register more than %s FAT sectors", fatSectorsLimit);
+            fatSectors[numberOfFatSectors++] = Utils.toInt(bytes);
         }
-        fatSectors.add(Utils.toInt(bytes));
         return delegate.writeAt(position, bytes);
     }
 
     public void registerFatSector(int sectorPosition) {
-        Verify.verify(fatSectors.size() < 127);
-        writeAt(fatSectors.size() * 4, Utils.toBytesLE(sectorPosition, 4));
+        Verify.verify(numberOfFatSectors < fatSectorsLimit);
+        writeAt(numberOfFatSectors * 4, Utils.toBytesLE(sectorPosition, 4));
+    }
+
+    public void replaceFatSector(int index, int sectorPosition) {
+        Verify.verify(index < numberOfFatSectors, "FAT sector is not registered in DIFAT sector: " + index);
+        delegate.writeAt(index * 4, Utils.toBytesLE(sectorPosition, 4));
+        fatSectors[index] = sectorPosition;
     }
 
     public void registerNextDifatSector(int sectorPosition) {
-        writeAt(508, Utils.toBytesLE(sectorPosition, 4));
+        writeAt(nextDifatSectorPosition, Utils.toBytesLE(sectorPosition, 4));
     }
 
     public List<Integer> getRegisteredFatSectors() {
-        return fatSectors;
+        return Ints.asList(fatSectors).subList(0, numberOfFatSectors);
+    }
+
+    public void forEachRegisteredFatSector(IntConsumer consumer) {
+        for (int i = 0; i < numberOfFatSectors; i++) {
+            consumer.accept(fatSectors[i]);
+        }
+    }
+
+    public int getFatSectorsLimit() {
+        return fatSectorsLimit;
     }
 
     public boolean hasFreeSpace() {
-        return fatSectors.size() < 127;
+        return numberOfFatSectors < fatSectorsLimit;
     }
 
     @Override
@@ -67,6 +90,11 @@ public class DIFATSector implements Sector {
         return delegate.getData();
     }
 
+    @Override
+    public ByteBuffer asByteBuffer() {
+        return delegate.asByteBuffer();
+    }
+
     @Override
     public DataView subView(int start, int end) {
         return delegate.subView(start, end);
@@ -9,6 +9,9 @@ import org.apache.commons.lang3.ArrayUtils;
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.OutputStream;
+import java.nio.Buffer;
+import java.nio.ByteBuffer;
+import java.nio.channels.WritableByteChannel;
 import java.util.*;
 
 public interface DataView {
@@ -25,60 +28,151 @@ public interface DataView {
     byte[] readAt(int position, int length);
     void copyTo(OutputStream os);
 
+    default ByteBuffer asByteBuffer() {
+        return ByteBuffer.wrap(getData());
+    }
+
+    default void copyTo(WritableByteChannel channel) {
+        Utils.writeFully(channel, asByteBuffer());
+    }
+
     static DataView empty() {
-        return new FixedSizeChunkedDataView(Header.SECTOR_SHIFT_VERSION_3_INT);
+        return empty(Header.SECTOR_SHIFT_VERSION_3_INT);
+    }
+
+    static DataView empty(int chunkSize) {
+        return new FixedSizeChunkedDataView(chunkSize);
+    }
+
+    static DataView emptyOffHeap() {
+        return emptyOffHeap(Header.SECTOR_SHIFT_VERSION_3_INT);
+    }
+
+    static DataView emptyOffHeap(int chunkSize) {
+        return new FixedSizeChunkedDataView(chunkSize, true);
     }
 
     static DataView from(InputStream is) {
+        return from(is, Long.MAX_VALUE);
+    }
+
+    static DataView from(InputStream is, long heapThreshold) {
+        List<DataView> chunks = Lists.newArrayList();
         try {
-            return DataView.from(ByteStreams.toByteArray(is));
+            byte[] header = new byte[Header.HEADER_LENGTH];
+            int headerRead = ByteStreams.read(is, header, 0, header.length);
+            if(headerRead == 0) {
+                return new FixedSizeChunkedDataView(Header.SECTOR_SHIFT_VERSION_3_INT, chunks);
+            }
+            Verify.verify(headerRead == header.length, "Data size should be a multiple of chunk size");
+            int chunkSize = Header.sectorSizeOf(ByteBuffer.wrap(header));
+            byte[] firstChunk = Arrays.copyOf(header, chunkSize);
+            Verify.verify(ByteStreams.read(is, firstChunk, header.length, chunkSize - header.length) == chunkSize - header.length, "Data size should be a multiple of chunk size");
+            chunks.add(new SimpleDataView(firstChunk));
+            while(true) {
+                if((long) chunks.size() * chunkSize >= heapThreshold) {
+                    return CachedFileDataView.spool(chunks, is, chunkSize, heapThreshold);
+                }
+                byte[] chunk = new byte[chunkSize];
+                int read = ByteStreams.read(is, chunk, 0, chunkSize);
+                if(read == 0) {
+                    return new FixedSizeChunkedDataView(chunkSize, chunks);
+                }
+                Verify.verify(read == chunkSize, "Data size should be a multiple of chunk size");
+                chunks.add(new SimpleDataView(chunk));
+            }
         } catch (IOException e) {
             throw new RuntimeException("Unable to read from InputStream", e);
         }
     }
 
     static DataView from(byte[] data) {
-        FixedSizeChunkedDataView dataView = new FixedSizeChunkedDataView(Header.SECTOR_SHIFT_VERSION_3_INT, data);
+        FixedSizeChunkedDataView dataView = new FixedSizeChunkedDataView(Header.sectorSizeOf(ByteBuffer.wrap(data)), data);
         return dataView;
     }
 
+    static DataView from(ByteBuffer data) {
+        return new FixedSizeChunkedDataView(Header.sectorSizeOf(data), data);
+    }
+
     class FixedSizeChunkedDataView implements DataView {
-        private int chunkSize;
+        public static final int GATHERED_WRITE_BATCH_SIZE = 256;
+        public static final int OFF_HEAP_SLAB_CHUNKS = 64;
+        protected final int chunkSize;
+        private final boolean offHeap;
         private List<DataView> chunks = Lists.newArrayList();
+        private ByteBuffer offHeapSlab;
+
+        protected FixedSizeChunkedDataView(int chunkSize) {
+            this(chunkSize, false);
+        }
 
-        private FixedSizeChunkedDataView(int chunkSize) {
+        protected FixedSizeChunkedDataView(int chunkSize, boolean offHeap) {
             this.chunkSize = chunkSize;
+            this.offHeap = offHeap;
+        }
+
+        private FixedSizeChunkedDataView(int chunkSize, ByteBuffer data) {
+            this(chunkSize, data.isDirect());
+            Verify.verify(data.remaining() % chunkSize == 0, "Buffer size should be a multiple of chunk size: " + data.remaining());
+            for (int i = 0; i < data.remaining(); i+=chunkSize) {
+                chunks.add(new ByteBufferDataView(Utils.slice(data, data.position() + i, chunkSize)));
+            }
         }
         private FixedSizeChunkedDataView(int chunkSize, byte[] data) {
             this(chunkSize);
             Verify.verify(data.length % chunkSize == 0);
             int dataLength = data.length;
             SimpleDataView rawView = new SimpleDataView(data);
-            for (int i = 0; i < dataLength; i+=512) {
-                chunks.add(new ReferencingSubView(rawView, i, i + 512));
+            for (int i = 0; i < dataLength; i+=chunkSize) {
+                chunks.add(new ReferencingSubView(rawView, i, i + chunkSize));
             }
         }
 
         public FixedSizeChunkedDataView(int chunkSize, List<DataView> chunks) {
-            this.chunkSize = chunkSize;
+            this(chunkSize);
             this.chunks.addAll(chunks);
         }
 
+        public DataView chunk(int index) {
+            return chunks.get(index);
+        }
+
+        public int getChunkCount() {
+            return chunks.size();
+        }
+
+        public int getChunkSize() {
+            return chunkSize;
+        }
+
+        public void pin(int index) {
+        }
+
+        public boolean isOffHeap() {
+            return offHeap;
+        }
+
         @Override
         public DataView writeAt(int position, byte[] bytes) {
-            return chunks.get(position / 512).writeAt(position%512, bytes);
+            return chunk(position / chunkSize).writeAt(position % chunkSize, bytes);
         }
 
         @Override
         public int getSize() {
-            return chunks.size() * chunkSize;
+            return getChunkCount() * chunkSize;
+        }
+
+        @Override
+        public boolean isEmpty() {
+            return getChunkCount() == 0;
         }
 
         @Override
         public byte[] getData() {
             byte[] result = new byte[getSize()];
-            for (int i = 0; i < chunks.size(); i++) {
-                DataView chunk = chunks.get(i);
+            for (int i = 0; i < getChunkCount(); i++) {
+                DataView chunk = chunk(i);
                 System.arraycopy(chunk.getData(), 0, result, i * chunkSize, chunkSize);
             }
             return result;
@@ -88,7 +182,7 @@ public interface DataView {
         public DataView subView(int start, int end) {
             Verify.verify(start/chunkSize == (end - 1)/chunkSize, "Can only get subview enclosed by one chunk. Actual values: " + start + " - " + end);
             Verify.verify(start != end, "Cannot get subview of size 0");
-            DataView chunk = chunks.get(start / chunkSize);
+            DataView chunk = chunk(start / chunkSize);
             if(end % chunkSize == 0) {
                 return chunk.subView(start % chunkSize);
             } else {
@@ -104,11 +198,20 @@ public interface DataView {
         @Override
         public DataView allocate(int length) {
             Verify.verify(length == chunkSize);
-            SimpleDataView view = new SimpleDataView(new byte[length]);
+            DataView view = offHeap ? new ByteBufferDataView(allocateOffHeap()) : new SimpleDataView(new byte[length]);
             chunks.add(view);
             return view;
         }
 
+        private ByteBuffer allocateOffHeap() {
+            if(offHeapSlab == null || !offHeapSlab.hasRemaining()) {
+                offHeapSlab = ByteBuffer.allocateDirect(chunkSize * OFF_HEAP_SLAB_CHUNKS);
+            }
+            ByteBuffer chunk = Utils.slice(offHeapSlab, offHeapSlab.position(), chunkSize);
+            ((Buffer) offHeapSlab).position(offHeapSlab.position() + chunkSize);
+            return chunk;
+        }
+
         @Override
         public DataView fill(byte[] filler) {
             throw new UnsupportedOperationException();
@@ -121,7 +224,24 @@ public interface DataView {
 
         @Override
         public void copyTo(OutputStream os) {
-            chunks.stream().forEach(dataView -> dataView.copyTo(os));
+            for (int i = 0; i < getChunkCount(); i++) {
+                chunk(i).copyTo(os);
+            }
+        }
+
+        @Override
+        public void copyTo(WritableByteChannel channel) {
+            int chunkCount = getChunkCount();
+            ByteBuffer[] batch = new ByteBuffer[Math.min(GATHERED_WRITE_BATCH_SIZE, Math.max(chunkCount, 1))];
+            int batchSize = 0;
+            for (int i = 0; i < chunkCount; i++) {
+                batch[batchSize++] = chunk(i).asByteBuffer();
+                if(batchSize == batch.length) {
+                    Utils.writeFully(channel, batch, batchSize);
+                    batchSize = 0;
+                }
+            }
+            Utils.writeFully(channel, batch, batchSize);
         }
     }
 
@@ -331,6 +451,104 @@ public interface DataView {
                 throw new RuntimeException("Unable to write data to Output Stream", e);
             }
         }
+
+        @Override
+        public ByteBuffer asByteBuffer() {
+            return ByteBuffer.wrap(data);
+        }
+    }
+
+    class ByteBufferDataView implements DataView {
+
+        private final ByteBuffer buffer;
+
+        public ByteBufferDataView(ByteBuffer buffer) {
+            this.buffer = Utils.slice(buffer, buffer.position(), buffer.remaining());
+        }
+
+        @Override
+        public DataView writeAt(int position, byte[] bytes) {
+            if(position < 0 || position + bytes.length > buffer.capacity()) {
+                throw new IndexOutOfBoundsException(String.format("%s + %s > %s", bytes.length, position, buffer.capacity()));
+            }
+            if(buffer.isReadOnly()) {
+                //Reading re-writes some unchanged values, which read-only buffers can simply ignore
+                if(Arrays.equals(readAt(position, bytes.length), bytes)) {
+                    return this;
+                }
+                throw new IllegalStateException("Unable to modify compound file backed by a read-only buffer");
+            }
+            Utils.slice(buffer, position, bytes.length).put(bytes);
+            return this;
+        }
+
+        @Override
+        public int getSize() {
+            return buffer.capacity();
+        }
+
+        @Override
+        public byte[] getData() {
+            return readAt(0, buffer.capacity());
+        }
+
+        @Override
+        public DataView subView(int start, int end) {
+            if(end < start) {
+                throw new IndexOutOfBoundsException(String.format("end < start (%s < %s)", end, start));
+            }
+            if(start < 0) {
+                throw new IndexOutOfBoundsException(String.format("subView start: %s, view start: %s", start, 0));
+            }
+            if(end > buffer.capacity()) {
+                throw new IndexOutOfBoundsException(String.format("subView end: %s, view end: %s", end, buffer.capacity()));
+            }
+            return new ReferencingSubView(this, start, end);
+        }
+
+        @Override
+        public DataView subView(int start) {
+            return subView(start, buffer.capacity());
+        }
+
+        @Override
+        public DataView allocate(int length) {
+            throw new UnsupportedOperationException();
+        }
+
+        @Override
+        public DataView fill(byte[] filler) {
+            Verify.verify(getSize() % filler.length == 0);
+            for (int i = 0; i < getSize(); i+=filler.length) {
+                writeAt(i, filler);
+            }
+            return this;
+        }
+
+        @Override
+        public byte[] readAt(int position, int length) {
+            byte[] result = new byte[length];
+            Utils.slice(buffer, position, length).get(result);
+            return result;
+        }
+
+        @Override
+        public void copyTo(OutputStream os) {
+            try {
+                if(buffer.hasArray()) {
+                    os.write(buffer.array(), buffer.arrayOffset(), buffer.capacity());
+                } else {
+                    os.write(getData());
+                }
+            } catch (IOException e) {
+                throw new RuntimeException("Unable to write data to Output Stream", e);
+            }
+        }
+
+        @Override
+        public ByteBuffer asByteBuffer() {
+            return buffer.duplicate();
+        }
     }
 
     class ReferencingSubView implements DataView {
@@ -429,5 +647,10 @@ public interface DataView {
                 throw new RuntimeException("Unable to write data to Output Stream", e);
             }
         }
+
+        @Override
+        public ByteBuffer asByteBuffer() {
+            return Utils.slice(delegate.asByteBuffer(), start, capacity);
+        }
     }
 }
@@ -46,17 +46,17 @@ public class DirectoryEntry implements Comparable<DirectoryEntry>{
         Verify.verify(nameLength >= 0 && nameLength <= ENTRY_NAME_MAXIMUM_LENGTH);
         objectType = ObjectType.fromCode(view.subView(FLAG_POSITION.OBJECT_TYPE, FLAG_POSITION.OBJECT_TYPE +1).getData()[0]);
         colorFlag = ColorFlag.fromCode(view.subView(FLAG_POSITION.COLOR_FLAG, FLAG_POSITION.COLOR_FLAG +1).getData()[0]);
-        setStateBits(Utils.initializedWith(4, 0));
-        setCLSID(Utils.initializedWith(16, 0));
-        setModifiedTime(Utils.initializedWith(8, 0));
-        setCreationTime(Utils.initializedWith(8, 0));
     }
 
     @Override
     public int compareTo(DirectoryEntry o) {
-        int result = Integer.compare(this.getDirectoryEntryName().length(), o.getDirectoryEntryName().length());
+        return compareNames(this.getDirectoryEntryName(), o.getDirectoryEntryName());
+    }
+
+    public static int compareNames(String name, String otherName) {
+        int result = Integer.compare(name.length(), otherName.length());
         if(result == 0) {
-            result = this.getDirectoryEntryName().toUpperCase().compareTo(o.getDirectoryEntryName().toUpperCase());
+            result = name.toUpperCase().compareTo(otherName.toUpperCase());
         }
         return result;
     }
@@ -323,6 +323,7 @@ public class DirectoryEntry implements Comparable<DirectoryEntry>{
             this.view = view;
             view.subView(FLAG_POSITION.STREAM_SIZE, FLAG_POSITION.STREAM_SIZE + 8).writeAt(0, Utils.toBytesLE(0, 8));
             setStreamStartingSector(Utils.ENDOFCHAIN_MARK_INT, view);
+            view.subView(FLAG_POSITION.CLSID, FLAG_POSITION.STARTING_SECTOR_LOCATION).writeAt(0, Utils.initializedWith(FLAG_POSITION.STARTING_SECTOR_LOCATION - FLAG_POSITION.CLSID, 0));
             leftSibling(null);
             rightSibling(null);
             child(null);
@@ -5,7 +5,9 @@ import com.ifedorov.cfbf.alloc.FAT;
 import com.ifedorov.cfbf.stream.StreamHolder;
 import com.ifedorov.cfbf.stream.StreamRW;
 
+import java.nio.channels.WritableByteChannel;
 import java.util.Arrays;
+import java.util.BitSet;
 import java.util.LinkedList;
 import java.util.NoSuchElementException;
 
@@ -20,35 +22,66 @@ public class DirectoryEntryChain {
     private LinkedList<Integer> sectorChain;
     private StreamHolder streamHolder;
     private int directoryEntryCount;
+    private final BitSet freeEntries = new BitSet();
 
     public DirectoryEntryChain(Sectors sectors, FAT fat, Header header, StreamHolder streamHolder) {
         this.sectors = sectors;
         this.fat = fat;
         this.header = header;
         this.sectorChain = Lists.newLinkedList(fat.buildChain(header.getFirstDirectorySectorLocation()));
+        this.sectorChain.forEach(sectors::pin);
         this.streamHolder = streamHolder;
         readDirectoryEntryCount();
     }
 
     private void readDirectoryEntryCount() {
         if(!sectorChain.isEmpty()) {
-            int maxDirectoryEntryPosition = -1;
+            int maxDirectoryEntryPosition = RootStorageDirectoryEntry.ID;
+            int entryPosition = 0;
             for (Integer sectorPosition : sectorChain) {
                 Sector sector = sectors.sector(sectorPosition);
-                for (int i = 0; i < 4; i++) {
-                    DataView directoryEntryView = sector.subView(i * 128, (i + 1) * 128);
+                for (int i = 0; i < getEntriesInOneSector(); i++, entryPosition++) {
+                    DataView directoryEntryView = sector.subView(i * DirectoryEntry.ENTRY_LENGTH, (i + 1) * DirectoryEntry.ENTRY_LENGTH);
                     int leftSiblingPosition = DirectoryEntry.getLeftSiblingPosition(directoryEntryView);
                     int rightSiblingPosition = DirectoryEntry.getRightSiblingPosition(directoryEntryView);
                     int childPosition = DirectoryEntry.getChildPosition(directoryEntryView);
                     maxDirectoryEntryPosition = Math.max(maxDirectoryEntryPosition, leftSiblingPosition);
                     maxDirectoryEntryPosition = Math.max(maxDirectoryEntryPosition, rightSiblingPosition);
                     maxDirectoryEntryPosition = Math.max(maxDirectoryEntryPosition, childPosition);
+                    if(entryPosition != RootStorageDirectoryEntry.ID && isUnused(directoryEntryView)) {
+                        freeEntries.set(entryPosition);
+                    }
                 }
             }
             directoryEntryCount = maxDirectoryEntryPosition + 1;
+            freeEntries.clear(directoryEntryCount, Math.max(directoryEntryCount, entryPosition));
         }
     }
 
+    private static boolean isUnused(DataView directoryEntryView) {
+        return directoryEntryView.subView(DirectoryEntry.FLAG_POSITION.OBJECT_TYPE, DirectoryEntry.FLAG_POSITION.OBJECT_TYPE + 1).getData()[0] == DirectoryEntry.ObjectType.Unknown.code()
+                && Utils.isFreeSectOrNoStream(DirectoryEntry.getLeftSiblingPosition(directoryEntryView))
+                && Utils.isFreeSectOrNoStream(DirectoryEntry.getRightSiblingPosition(directoryEntryView))
+                && Utils.isFreeSectOrNoStream(DirectoryEntry.getChildPosition(directoryEntryView));
+    }
+
+    public boolean relocateModifiedSectors() {
+        return fat.relocateModifiedSectors(sectorChain, header::setFirstDirectorySectorLocation);
+    }
+
+    public boolean relocateModifiedStreamSectors() {
+        boolean relocated = false;
+        for (int id = RootStorageDirectoryEntry.ID + 1; id < directoryEntryCount; id++) {
+            if(!freeEntries.get(id)) {
+                DirectoryEntry entry = getEntryById(id);
+                if(entry instanceof StreamDirectoryEntry) {
+                    relocated |= ((StreamDirectoryEntry) entry).relocateModifiedSectors();
+                }
+            }
+        }
+        return relocated;
+    }
+
     public RootStorageDirectoryEntry getRootStorage() {
         return getEntryById(0);
     }
@@ -57,9 +90,9 @@ public class DirectoryEntryChain {
         if(i < 0 || i > directoryEntryCount - 1) {
             throw new NoSuchElementException("" + i);
         }
-        int sectorNumber = i / 4;
-        int shiftInsideSector = i % 4 * 128;
-        DataView view = sectors.sector(sectorChain.get(sectorNumber)).subView(shiftInsideSector, shiftInsideSector + 128);
+        int sectorNumber = i / getEntriesInOneSector();
+        int shiftInsideSector = i % getEntriesInOneSector() * DirectoryEntry.ENTRY_LENGTH;
+        DataView view = sectors.sector(sectorChain.get(sectorNumber)).subView(shiftInsideSector, shiftInsideSector + DirectoryEntry.ENTRY_LENGTH);
         DirectoryEntry.ObjectType objectType = DirectoryEntry.ObjectType.fromCode(view.subView(DirectoryEntry.FLAG_POSITION.OBJECT_TYPE, DirectoryEntry.FLAG_POSITION.OBJECT_TYPE + 1).getData()[0]);
         if(objectType == DirectoryEntry.ObjectType.RootStorage) {
             return (T) new RootStorageDirectoryEntry(i, this, view);
@@ -81,7 +114,7 @@ public class DirectoryEntryChain {
     }
 
     public StorageDirectoryEntry createStorage(String name, DirectoryEntry.ColorFlag colorFlag) {
-        return new StorageDirectoryEntry.Builder(directoryEntryCount, this, getViewForDirectoryEntry())
+        return new StorageDirectoryEntry.Builder(nextDirectoryEntryId(), this, getViewForDirectoryEntry())
                 .name(name)
                 .color(colorFlag)
                 .build();
@@ -89,7 +122,7 @@ public class DirectoryEntryChain {
 
     public StreamDirectoryEntry createStream(String name, DirectoryEntry.ColorFlag colorFlag, byte[] data) {
         StreamDirectoryEntry streamEntry =
-                new StreamDirectoryEntry.Builder(directoryEntryCount, this, getViewForDirectoryEntry(), streamHolder)
+                new StreamDirectoryEntry.Builder(nextDirectoryEntryId(), this, getViewForDirectoryEntry(), streamHolder)
                 .name(name)
                 .color(colorFlag)
                 .build();
@@ -99,19 +132,40 @@ public class DirectoryEntryChain {
         return streamEntry;
     }
 
+    void free(DirectoryEntry entry) {
+        DataView view = getViewForDirectoryEntry(entry.getId());
+        view.fill(new byte[]{0});
+        DirectoryEntry.setLeftSibling(view, Utils.FREESECT_MARK_OR_NOSTREAM_INT);
+        DirectoryEntry.setRightSibling(view, Utils.FREESECT_MARK_OR_NOSTREAM_INT);
+        DirectoryEntry.setChild(view, Utils.FREESECT_MARK_OR_NOSTREAM_INT);
+        freeEntries.set(entry.getId());
+    }
+
+    private int nextDirectoryEntryId() {
+        int freeEntry = freeEntries.nextSetBit(0);
+        return freeEntry >= 0 ? freeEntry : directoryEntryCount;
+    }
+
     private DataView getViewForDirectoryEntry() {
-        int directoriesRegisteredInCurrentSector = directoryEntryCount % 4;
+        int freeEntry = freeEntries.nextSetBit(0);
+        if(freeEntry >= 0) {
+            freeEntries.clear(freeEntry);
+            return getViewForDirectoryEntry(freeEntry);
+        }
+        int directoriesRegisteredInCurrentSector = directoryEntryCount % getEntriesInOneSector();
         try {
             if (directoriesRegisteredInCurrentSector == 0) {
-                Sector directoryEntrySector = sectors.allocate();
+                int allocatedPosition = sectors.allocate().getPosition();
+                //Entries keep views on their sector, so it is pinned like the rest of the chain before the views are taken
+                sectors.pin(allocatedPosition);
+                Sector directoryEntrySector = sectors.sector(allocatedPosition);
                 if(sectorChain.isEmpty()) {
                     header.setFirstDirectorySectorLocation(directoryEntrySector.getPosition());
-                    fat.registerSector(directoryEntrySector.getPosition(), null);
-                } else {
-                    fat.registerSector(directoryEntrySector.getPosition(), sectorChain.getLast());
                 }
+                fat.registerChain(new int[]{directoryEntrySector.getPosition()}, sectorChain.peekLast());
                 sectorChain.add(directoryEntrySector.getPosition());
-                return directoryEntrySector.subView(0, 128);
+                header.setNumberOfDirectorySectors(sectorChain.size());
+                return directoryEntrySector.subView(0, DirectoryEntry.ENTRY_LENGTH);
             } else {
                 return sectors.sector(sectorChain.getLast())
                         .subView(directoriesRegisteredInCurrentSector * DirectoryEntry.ENTRY_LENGTH, (directoriesRegisteredInCurrentSector + 1) * DirectoryEntry.ENTRY_LENGTH);
@@ -121,4 +175,25 @@ public class DirectoryEntryChain {
         }
     }
 
+    private DataView getViewForDirectoryEntry(int id) {
+        int shiftInsideSector = id % getEntriesInOneSector() * DirectoryEntry.ENTRY_LENGTH;
+        return sectors.sector(sectorChain.get(id / getEntriesInOneSector())).subView(shiftInsideSector, shiftInsideSector + DirectoryEntry.ENTRY_LENGTH);
+    }
+
+    int getNumberOfSectors() {
+        return sectorChain.size();
+    }
+
+    void copyTo(WritableByteChannel channel) {
+        sectorChain.forEach(position -> sectors.sector(position).copyTo(channel));
+    }
+
+    public Header.Version getVersion() {
+        return header.getVersion();
+    }
+
+    private int getEntriesInOneSector() {
+        return header.getSectorShift() / DirectoryEntry.ENTRY_LENGTH;
+    }
+
 }
@@ -0,0 +1,434 @@
+package com.ifedorov.cfbf;
+
+import com.google.common.base.Verify;
+import com.google.common.collect.Lists;
+import com.google.common.collect.MapMaker;
+import com.google.common.collect.Maps;
+
+import java.io.Closeable;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.Buffer;
+import java.nio.ByteBuffer;
+import java.nio.channels.AsynchronousFileChannel;
+import java.nio.channels.CompletionHandler;
+import java.nio.channels.FileChannel;
+import java.nio.channels.NonWritableChannelException;
+import java.nio.channels.WritableByteChannel;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.Arrays;
+import java.util.BitSet;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+
+public abstract class FileDataView extends DataView.FixedSizeChunkedDataView implements Closeable {
+
+    protected final Path path;
+    protected final FileChannel channel;
+    protected final BitSet dirty = new BitSet();
+    private final BitSet reclaimed = new BitSet();
+    private final List<DirtyTrackingView> appendedChunks = Lists.newArrayList();
+    private final Map<Integer, DirtyTrackingView> pinnedChunks = Maps.newHashMap();
+    //Views handed out for unpinned chunks live as long as somebody holds them, so that swap can rebind them too
+    private final Map<Integer, DirtyTrackingView> liveChunks = new MapMaker().weakValues().makeMap();
+    protected final int fileChunks;
+    private int committedChunks;
+    private AsynchronousFileChannel asyncChannel;
+
+    protected FileDataView(Path path, FileChannel channel, int chunkSize) throws IOException {
+        super(chunkSize);
+        long fileSize = channel.size();
+        Verify.verify(fileSize % chunkSize == 0, "File size should be a multiple of chunk size: " + fileSize);
+        Verify.verify(fileSize / chunkSize <= Integer.MAX_VALUE, "File contains too many chunks: " + fileSize);
+        this.path = path;
+        this.channel = channel;
+        this.fileChunks = (int) (fileSize / chunkSize);
+        this.committedChunks = fileChunks;
+    }
+
+    protected abstract DataView fileChunk(int index);
+
+    @Override
+    public DataView chunk(int index) {
+        if(index < 0 || index >= getChunkCount()) {
+            throw new IndexOutOfBoundsException("Chunk index: " + index + ", number of chunks: " + getChunkCount());
+        }
+        if(index >= fileChunks) {
+            return appendedChunks.get(index - fileChunks);
+        }
+        return liveChunk(index);
+    }
+
+    @Override
+    public void pin(int index) {
+        if(index < fileChunks && !pinnedChunks.containsKey(index)) {
+            pinnedChunks.put(index, liveChunk(index));
+        }
+    }
+
+    @Override
+    public DataView allocate(int length) {
+        DirtyTrackingView allocated = new DirtyTrackingView(getChunkCount(), super.allocate(length));
+        appendedChunks.add(allocated);
+        markDirty(getChunkCount() - 1);
+        return allocated;
+    }
+
+    public void swap(int first, int second) {
+        DirtyTrackingView firstChunk = (DirtyTrackingView) chunk(first);
+        DirtyTrackingView secondChunk = (DirtyTrackingView) chunk(second);
+        boolean firstPinned = pinnedChunks.remove(first) != null;
+        boolean secondPinned = pinnedChunks.remove(second) != null;
+        DataView firstStorage = firstChunk.delegate;
+        DataView secondStorage = secondChunk.delegate;
+        byte[] firstData = Utils.copy(firstStorage.getData());
+        firstStorage.writeAt(0, secondStorage.getData());
+        secondStorage.writeAt(0, firstData);
+        firstChunk.bind(second, secondStorage);
+        secondChunk.bind(first, firstStorage);
+        register(firstChunk, firstPinned);
+        register(secondChunk, secondPinned);
+        markDirty(first);
+        markDirty(second);
+    }
+
+    private DirtyTrackingView liveChunk(int index) {
+        DirtyTrackingView pinnedChunk = pinnedChunks.get(index);
+        if(pinnedChunk != null) {
+            return pinnedChunk;
+        }
+        return liveChunks.computeIfAbsent(index, i -> new DirtyTrackingView(i, fileChunk(i)));
+    }
+
+    private void register(DirtyTrackingView chunk, boolean pinned) {
+        if(chunk.index >= fileChunks) {
+            appendedChunks.set(chunk.index - fileChunks, chunk);
+            return;
+        }
+        liveChunks.put(chunk.index, chunk);
+        if(pinned) {
+            pinnedChunks.put(chunk.index, chunk);
+        }
+    }
+
+    protected void markDirty(int index) {
+        dirty.set(index);
+    }
+
+    public void clearDirty(int index) {
+        dirty.clear(index);
+    }
+
+    public boolean isDirty(int index) {
+        return dirty.get(index);
+    }
+
+    public boolean isCommitted(int index) {
+        return index < committedChunks && !reclaimed.get(index);
+    }
+
+    public void reclaim(int index) {
+        reclaimed.set(index);
+    }
+
+    public int getDirtyChunkCount() {
+        return dirty.cardinality();
+    }
+
+    public void commit() {
+        try {
+            for (int i = dirty.nextSetBit(1); i >= 0; i = dirty.nextSetBit(i + 1)) {
+                writeChunk(i);
+            }
+            channel.force(true);
+            if(dirty.get(0)) {
+                writeChunk(0);
+                channel.force(true);
+            }
+        } catch (IOException | NonWritableChannelException e) {
+            throw new RuntimeException("Unable to commit changes to file: " + path, e);
+        }
+        dirty.clear();
+        reclaimed.clear();
+        committedChunks = getChunkCount();
+    }
+
+    public void read(int index, int offset, ByteBuffer target) {
+        long runStart = 0;
+        int runOffset = target.position();
+        int runLength = 0;
+        while(target.hasRemaining()) {
+            int length = Math.min(chunkSize - offset, target.remaining());
+            if(index < fileChunks && !dirty.get(index)) {
+                if(runLength == 0) {
+                    runStart = (long) index * chunkSize + offset;
+                    runOffset = target.position();
+                }
+                runLength += length;
+            } else {
+                if(runLength > 0) {
+                    readClean(runStart, Utils.slice(target, runOffset, runLength));
+                    runLength = 0;
+                }
+                Utils.slice(target, target.position(), length).put(Utils.slice(chunk(index).asByteBuffer(), offset, length));
+            }
+            ((Buffer) target).position(target.position() + length);
+            index++;
+            offset = 0;
+        }
+        if(runLength > 0) {
+            readClean(runStart, Utils.slice(target, runOffset, runLength));
+        }
+    }
+
+    protected void readClean(long position, ByteBuffer target) {
+        try {
+            while(target.hasRemaining()) {
+                int read = channel.read(target, position);
+                if(read < 0) {
+                    throw new EOFException("Unexpected end of file at position " + position);
+                }
+                position += read;
+            }
+        } catch (IOException e) {
+            throw new RuntimeException("Unable to read file: " + path, e);
+        }
+    }
+
+    public CompletableFuture<Void> readAsync(int index, int offset, ByteBuffer target) {
+        List<CompletableFuture<Void>> reads = Lists.newArrayList();
+        long runStart = 0;
+        int runOffset = target.position();
+        int runLength = 0;
+        while(target.hasRemaining()) {
+            int length = Math.min(chunkSize - offset, target.remaining());
+            if(index < fileChunks && !dirty.get(index)) {
+                if(runLength == 0) {
+                    runStart = (long) index * chunkSize + offset;
+                    runOffset = target.position();
+                }
+                runLength += length;
+            } else {
+                if(runLength > 0) {
+                    reads.add(readFully(Utils.slice(target, runOffset, runLength), runStart));
+                    runLength = 0;
+                }
+                Utils.slice(target, target.position(), length).put(chunk(index).readAt(offset, length));
+            }
+            ((Buffer) target).position(target.position() + length);
+            index++;
+            offset = 0;
+        }
+        if(runLength > 0) {
+            reads.add(readFully(Utils.slice(target, runOffset, runLength), runStart));
+        }
+        return CompletableFuture.allOf(reads.toArray(new CompletableFuture<?>[0]));
+    }
+
+    public void transferTo(int index, int offset, int length, WritableByteChannel target) {
+        long runStart = 0;
+        long runLength = 0;
+        try {
+            while(length > 0) {
+                int partLength = Math.min(chunkSize - offset, length);
+                if(index < fileChunks && !dirty.get(index)) {
+                    if(runLength == 0) {
+                        runStart = (long) index * chunkSize + offset;
+                    }
+                    runLength += partLength;
+                } else {
+                    transferFully(runStart, runLength, target);
+                    runLength = 0;
+                    Utils.writeFully(target, Utils.slice(chunk(index).asByteBuffer(), offset, partLength));
+                }
+                length -= partLength;
+                index++;
+                offset = 0;
+            }
+            transferFully(runStart, runLength, target);
+        } catch (IOException e) {
+            throw new RuntimeException("Unable to transfer data from file: " + path, e);
+        }
+    }
+
+    private void transferFully(long position, long count, WritableByteChannel target) throws IOException {
+        while(count > 0) {
+            long transferred = channel.transferTo(position, count, target);
+            if(transferred <= 0) {
+                throw new EOFException("Unexpected end of file at position " + position);
+            }
+            position += transferred;
+            count -= transferred;
+        }
+    }
+
+    private CompletableFuture<Void> readFully(ByteBuffer target, long position) {
+        CompletableFuture<Void> result = new CompletableFuture<>();
+        AsynchronousFileChannel channel;
+        try {
+            channel = asyncChannel();
+        } catch (IOException e) {
+            result.completeExceptionally(new RuntimeException("Unable to open file for asynchronous reads: " + path, e));
+            return result;
+        }
+        channel.read(target, position, position, new CompletionHandler<Integer, Long>() {
+            @Override
+            public void completed(Integer read, Long readPosition) {
+                if(read < 0) {
+                    failed(new EOFException("Unexpected end of file at position " + readPosition), readPosition);
+                } else if(target.hasRemaining()) {
+                    channel.read(target, readPosition + read, readPosition + read, this);
+                } else {
+                    result.complete(null);
+                }
+            }
+
+            @Override
+            public void failed(Throwable exc, Long readPosition) {
+                result.completeExceptionally(new RuntimeException("Unable to read file " + path + " at position " + readPosition, exc));
+            }
+        });
+        return result;
+    }
+
+    private synchronized AsynchronousFileChannel asyncChannel() throws IOException {
+        if(asyncChannel == null) {
+            asyncChannel = AsynchronousFileChannel.open(path, StandardOpenOption.READ);
+        }
+        return asyncChannel;
+    }
+
+    private void writeChunk(int index) throws IOException {
+        ByteBuffer data = chunk(index).asByteBuffer();
+        long position = (long) index * chunkSize;
+        while(data.hasRemaining()) {
+            position += channel.write(data, position);
+        }
+    }
+
+    @Override
+    public int getChunkCount() {
+        return fileChunks + super.getChunkCount();
+    }
+
+    public Path getPath() {
+        return path;
+    }
+
+    @Override
+    public void close() {
+        try {
+            if(asyncChannel != null) {
+                asyncChannel.close();
+            }
+            channel.close();
+        } catch (IOException e) {
+            throw new RuntimeException("Unable to close file: " + path, e);
+        }
+    }
+
+    protected class DirtyTrackingView implements DataView {
+
+        private int index;
+        private DataView delegate;
+
+        protected DirtyTrackingView(int index, DataView delegate) {
+            bind(index, delegate);
+        }
+
+        private void bind(int index, DataView delegate) {
+            this.index = index;
+            this.delegate = delegate;
+        }
+
+        @Override
+        public DataView writeAt(int position, byte[] bytes) {
+            if(!dirty.get(index) && position >= 0 && position + bytes.length <= getSize()
+                    && Arrays.equals(delegate.readAt(position, bytes.length), bytes)) {
+                return this;
+            }
+            delegate.writeAt(position, bytes);
+            markDirty(index);
+            return this;
+        }
+
+        @Override
+        public int getSize() {
+            return delegate.getSize();
+        }
+
+        @Override
+        public byte[] getData() {
+            return delegate.getData();
+        }
+
+        @Override
+        public DataView subView(int start, int end) {
+            if(end < start) {
+                throw new IndexOutOfBoundsException(String.format("end < start (%s < %s)", end, start));
+            }
+            if(start < 0) {
+                throw new IndexOutOfBoundsException(String.format("subView start: %s, view start: %s", start, 0));
+            }
+            if(end > getSize()) {
+                throw new IndexOutOfBoundsException(String.format("subView end: %s, view end: %s", end, getSize()));
+            }
+            return new ReferencingSubView(this, start, end);
+        }
+
+        @Override
+        public DataView subView(int start) {
+            return subView(start, getSize());
+        }
+
+        @Override
+        public DataView allocate(int length) {
+            throw new UnsupportedOperationException();
+        }
+
+        @Override
+        public DataView fill(byte[] filler) {
+            delegate.fill(filler);
+            markDirty(index);
+            return this;
+        }
+
+        @Override
+        public byte[] readAt(int position, int length) {
+            return delegate.readAt(position, length);
+        }
+
+        @Override
+        public void copyTo(OutputStream os) {
+            delegate.copyTo(os);
+        }
+
+        @Override
+        public ByteBuffer asByteBuffer() {
+            return delegate.asByteBuffer();
+        }
+    }
+
+    protected static int sectorSizeOf(FileChannel channel) throws IOException {
+        ByteBuffer header = ByteBuffer.allocate(Header.HEADER_LENGTH);
+        while(header.hasRemaining()) {
+            if(channel.read(header, header.position()) < 0) {
+                break;
+            }
+        }
+        ((Buffer) header).flip();
+        return Header.sectorSizeOf(header);
+    }
+
+    protected static void closeQuietly(FileChannel channel) {
+        if(channel != null) {
+            try {
+                channel.close();
+            } catch (IOException ignored) {
+            }
+        }
+    }
+}
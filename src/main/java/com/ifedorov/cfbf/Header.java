@@ -1,8 +1,10 @@
 package com.ifedorov.cfbf;
 
 import com.google.common.base.Verify;
+import com.google.common.base.VerifyException;
 import com.google.common.collect.Lists;
 
+import java.nio.ByteBuffer;
 import java.util.Arrays;
 import java.util.List;
 
@@ -12,33 +14,83 @@ public class Header {
 
     public static final byte[] HEADER_SIGNATURE = Utils.toBytesLE(0xE11AB1A1E011CFD0l, 8);
     public static final byte[] MAJOR_VERSION_3 = Utils.toBytesLE(0x0003, 2);
+    public static final byte[] MAJOR_VERSION_4 = Utils.toBytesLE(0x0004, 2);
     public static final byte[] MINOR_VERSION_3 = Utils.toBytesLE(0x003E, 2);
     public static final byte[] BYTE_ORDER_LITTLE_ENDIAN = Utils.toBytesLE(0xfffe, 2);
     public static final byte[] SECTOR_SHIFT_VERSION_3 = Utils.toBytesLE(0x0009, 2);
     public static final int SECTOR_SHIFT_VERSION_3_INT = (int)Math.pow(2, Utils.toInt(SECTOR_SHIFT_VERSION_3));
+    public static final byte[] SECTOR_SHIFT_VERSION_4 = Utils.toBytesLE(0x000C, 2);
+    public static final int SECTOR_SHIFT_VERSION_4_INT = (int)Math.pow(2, Utils.toInt(SECTOR_SHIFT_VERSION_4));
     public static final byte[] MINI_SECTOR_SHIFT_VERSION_3 = Utils.toBytesLE(0x0006, 2);
     public static final byte[] MINI_STREAM_CUTOFF_SIZE = Utils.toBytesLE(0x00001000, 4);
     public static final int HEADER_LENGTH = 512;
     public static final int DIFAT_ENTRIES_LIMIT_IN_HEADER = 109;
     private final DataView dataView;
     private final DifatEntries difatEntries;
+    private final Version version;
+
+    public enum Version {
+        V3(MAJOR_VERSION_3, SECTOR_SHIFT_VERSION_3, SECTOR_SHIFT_VERSION_3_INT),
+        V4(MAJOR_VERSION_4, SECTOR_SHIFT_VERSION_4, SECTOR_SHIFT_VERSION_4_INT);
+
+        private final byte[] majorVersion;
+        private final byte[] sectorShift;
+        private final int sectorSize;
+
+        Version(byte[] majorVersion, byte[] sectorShift, int sectorSize) {
+            this.majorVersion = majorVersion;
+            this.sectorShift = sectorShift;
+            this.sectorSize = sectorSize;
+        }
+
+        public int getSectorSize() {
+            return sectorSize;
+        }
+
+        public static Version fromMajorVersion(byte[] majorVersion) {
+            for (Version version : values()) {
+                if(Arrays.equals(version.majorVersion, majorVersion)) {
+                    return version;
+                }
+            }
+            throw new VerifyException("Unsupported major version: " + Utils.toInt(majorVersion));
+        }
+    }
 
     public static Header empty(DataView dataView) {
+        return empty(dataView, Version.V3);
+    }
+
+    public static Header empty(DataView dataView, Version version) {
         dataView.subView(SIGNATURE, SIGNATURE + 8).writeAt(0, HEADER_SIGNATURE);
         dataView.subView(MINOR_VERSION, MINOR_VERSION + 2).writeAt(0, MINOR_VERSION_3);
-        dataView.subView(MAJOR_VERSION, MAJOR_VERSION + 2).writeAt(0, MAJOR_VERSION_3);
+        dataView.subView(MAJOR_VERSION, MAJOR_VERSION + 2).writeAt(0, version.majorVersion);
         dataView.subView(BYTE_ORDER, BYTE_ORDER + 2).writeAt(0, BYTE_ORDER_LITTLE_ENDIAN);
-        dataView.subView(SECTOR_SHIFT, SECTOR_SHIFT + 2).writeAt(0, SECTOR_SHIFT_VERSION_3);
+        dataView.subView(SECTOR_SHIFT, SECTOR_SHIFT + 2).writeAt(0, version.sectorShift);
         dataView.subView(MINI_SECTOR_SHIFT, MINI_SECTOR_SHIFT + 2).writeAt(0, MINI_SECTOR_SHIFT_VERSION_3);
         dataView.subView(MINI_STREAM_CUTOFF_SIZE_POSITION, MINI_STREAM_CUTOFF_SIZE_POSITION + 4).writeAt(0, MINI_STREAM_CUTOFF_SIZE);
         dataView.subView(MINI_STREAM_CUTOFF_SIZE_POSITION, MINI_STREAM_CUTOFF_SIZE_POSITION + 4).writeAt(0, MINI_STREAM_CUTOFF_SIZE);
         dataView.subView(FIRST_DIFAT_SECTOR, FIRST_DIFAT_SECTOR + 4).writeAt(0, Utils.ENDOFCHAIN_MARK);
         dataView.subView(FIRST_MINIFAT_SECTOR, FIRST_MINIFAT_SECTOR + 4).writeAt(0, Utils.ENDOFCHAIN_MARK);
         dataView.subView(FIRST_DIRECTORY_SECTOR, FIRST_DIRECTORY_SECTOR + 4).writeAt(0, Utils.ENDOFCHAIN_MARK);
-        dataView.subView(DIFAT_ENTRIES_FIRST_POSITION, 512).fill(Utils.FREESECT_MARK_OR_NOSTREAM);
+        dataView.subView(DIFAT_ENTRIES_FIRST_POSITION, HEADER_LENGTH).fill(Utils.FREESECT_MARK_OR_NOSTREAM);
         return new Header(dataView);
     }
 
+    public static int sectorSizeOf(ByteBuffer data) {
+        if(data.remaining() < HEADER_LENGTH) {
+            return SECTOR_SHIFT_VERSION_3_INT;
+        }
+        byte[] signature = new byte[8];
+        Utils.slice(data, data.position() + SIGNATURE, 8).get(signature);
+        byte[] sectorShift = new byte[2];
+        Utils.slice(data, data.position() + SECTOR_SHIFT, 2).get(sectorShift);
+        if(Arrays.equals(HEADER_SIGNATURE, signature) && Arrays.equals(SECTOR_SHIFT_VERSION_4, sectorShift)) {
+            return SECTOR_SHIFT_VERSION_4_INT;
+        }
+        return SECTOR_SHIFT_VERSION_3_INT;
+    }
+
     public interface FLAG_POSITION {
         int SIGNATURE = 0;
         int CLSID = 8;
@@ -54,6 +106,7 @@ public class Header {
         int NUMBER_OF_MINIFAT_SECTORS = 64;
         int FIRST_DIFAT_SECTOR = 68;
         int NUMBER_OF_DIFAT_SECTORS = 72;
+        int NUMBER_OF_DIRECTORY_SECTORS = 40;
         int DIFAT_ENTRIES_FIRST_POSITION = 76;
     }
 
@@ -63,17 +116,24 @@ public class Header {
         }
         Verify.verify(Arrays.equals(Header.HEADER_SIGNATURE, dataView.subView(FLAG_POSITION.SIGNATURE, FLAG_POSITION.SIGNATURE + 8).getData()));
         Verify.verify(Arrays.equals(Header.MINOR_VERSION_3, dataView.subView(MINOR_VERSION, MINOR_VERSION +2).getData()));
-        Verify.verify(Arrays.equals(Header.MAJOR_VERSION_3, dataView.subView(FLAG_POSITION.MAJOR_VERSION, FLAG_POSITION.MAJOR_VERSION +2).getData()));
+        Version version = Version.fromMajorVersion(dataView.subView(FLAG_POSITION.MAJOR_VERSION, FLAG_POSITION.MAJOR_VERSION +2).getData());
         Verify.verify(Arrays.equals(Header.BYTE_ORDER_LITTLE_ENDIAN, dataView.subView(FLAG_POSITION.BYTE_ORDER, FLAG_POSITION.BYTE_ORDER + 2).getData()));
-        Verify.verify(Arrays.equals(Header.SECTOR_SHIFT_VERSION_3, dataView.subView(FLAG_POSITION.SECTOR_SHIFT, FLAG_POSITION.SECTOR_SHIFT + 2).getData()));
+        Verify.verify(Arrays.equals(version.sectorShift, dataView.subView(FLAG_POSITION.SECTOR_SHIFT, FLAG_POSITION.SECTOR_SHIFT + 2).getData()));
         Verify.verify(Arrays.equals(Header.MINI_SECTOR_SHIFT_VERSION_3, dataView.subView(FLAG_POSITION.MINI_SECTOR_SHIFT, FLAG_POSITION.MINI_SECTOR_SHIFT + 2).getData()));
         Verify.verify(Arrays.equals(new byte[6], dataView.subView(34, 40).getData()));
-        Verify.verify(Arrays.equals(new byte[4], dataView.subView(40, 44).getData()));
+        if(version == Version.V3) {
+            Verify.verify(Arrays.equals(new byte[4], dataView.subView(NUMBER_OF_DIRECTORY_SECTORS, NUMBER_OF_DIRECTORY_SECTORS + 4).getData()));
+        }
         Verify.verify(Arrays.equals(Header.MINI_STREAM_CUTOFF_SIZE, dataView.subView(FLAG_POSITION.MINI_STREAM_CUTOFF_SIZE_POSITION, FLAG_POSITION.MINI_STREAM_CUTOFF_SIZE_POSITION + 4).getData()));
         this.dataView = dataView;
+        this.version = version;
         this.difatEntries = new DifatEntries();
     }
 
+    public Version getVersion() {
+        return version;
+    }
+
     public int getFirstDirectorySectorLocation() {
         return Utils.toInt(dataView.subView(FIRST_DIRECTORY_SECTOR, FIRST_DIRECTORY_SECTOR + 4).getData());
     }
@@ -126,6 +186,16 @@ public class Header {
         dataView.subView(FIRST_DIFAT_SECTOR, FIRST_DIFAT_SECTOR + 4).writeAt(0, Utils.toBytesLE(i, 4));
     }
 
+    public int getNumberOfDirectorySectors() {
+        return Utils.toInt(dataView.subView(NUMBER_OF_DIRECTORY_SECTORS, NUMBER_OF_DIRECTORY_SECTORS + 4).getData());
+    }
+
+    public void setNumberOfDirectorySectors(int i) {
+        if(version == Version.V4) {
+            dataView.subView(NUMBER_OF_DIRECTORY_SECTORS, NUMBER_OF_DIRECTORY_SECTORS + 4).writeAt(0, Utils.toBytesLE(i, 4));
+        }
+    }
+
     public void setNumberOfDifatSectors(int i) {
         dataView.subView(NUMBER_OF_DIFAT_SECTORS, NUMBER_OF_DIFAT_SECTORS + 4).writeAt(0, Utils.toBytesLE(i, 4));
     }
@@ -146,6 +216,10 @@ public class Header {
         difatEntries.registerFatSector(sectorPosition);
     }
 
+    public void replaceFatSector(int index, int sectorPosition) {
+        difatEntries.replaceFatSector(index, sectorPosition);
+    }
+
     private class DifatEntries {
         private DataView view = dataView.subView(DIFAT_ENTRIES_FIRST_POSITION);
         private List<Integer> difatEntries;
@@ -169,6 +243,13 @@ public class Header {
             view.writeAt(difatEntries.size() * 4, Utils.toBytesLE(sectorPosition, 4));
             difatEntries.add(sectorPosition);
         }
+        public void replaceFatSector(int index, int sectorPosition) {
+            if(index >= difatEntries.size()) {
+                throw new IndexOutOfBoundsException("FAT sector is not registered in Header: " + index);
+            }
+            view.writeAt(index * 4, Utils.toBytesLE(sectorPosition, 4));
+            difatEntries.set(index, sectorPosition);
+        }
         public boolean isFull() {
             return difatEntries.size() >= DIFAT_ENTRIES_LIMIT_IN_HEADER;
         }
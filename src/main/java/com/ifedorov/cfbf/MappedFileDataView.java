@@ -0,0 +1,67 @@
+package com.ifedorov.cfbf;
+
+import com.google.common.base.Verify;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+
+public class MappedFileDataView extends FileDataView {
+
+    public static final int DEFAULT_WINDOW_SIZE = 1 << 30;
+    private final MappedByteBuffer[] windows;
+    private final int windowSize;
+
+    MappedFileDataView(Path path, FileChannel channel, FileChannel.MapMode mapMode, int chunkSize, int windowSize) throws IOException {
+        super(path, channel, chunkSize);
+        Verify.verify(windowSize % chunkSize == 0, "Window size should be a multiple of chunk size: " + windowSize);
+        long fileSize = (long) fileChunks * chunkSize;
+        this.windowSize = windowSize;
+        this.windows = new MappedByteBuffer[(int) ((fileSize + windowSize - 1) / windowSize)];
+        for (int i = 0; i < windows.length; i++) {
+            long windowStart = (long) i * windowSize;
+            windows[i] = channel.map(mapMode, windowStart, Math.min(windowSize, fileSize - windowStart));
+        }
+    }
+
+    public static MappedFileDataView map(Path path) {
+        return map(path, DEFAULT_WINDOW_SIZE);
+    }
+
+    static MappedFileDataView map(Path path, int windowSize) {
+        FileChannel channel = null;
+        try {
+            if(Files.isWritable(path)) {
+                channel = FileChannel.open(path, StandardOpenOption.READ, StandardOpenOption.WRITE);
+                return new MappedFileDataView(path, channel, FileChannel.MapMode.PRIVATE, sectorSizeOf(channel), windowSize);
+            } else {
+                channel = FileChannel.open(path, StandardOpenOption.READ);
+                return new MappedFileDataView(path, channel, FileChannel.MapMode.READ_ONLY, sectorSizeOf(channel), windowSize);
+            }
+        } catch (IOException e) {
+            closeQuietly(channel);
+            throw new RuntimeException("Unable to map file: " + path, e);
+        }
+    }
+
+    @Override
+    protected DataView fileChunk(int index) {
+        long chunkStart = (long) index * chunkSize;
+        MappedByteBuffer window = windows[(int) (chunkStart / windowSize)];
+        return new ByteBufferDataView(Utils.slice(window, (int) (chunkStart % windowSize), chunkSize));
+    }
+
+    @Override
+    protected void readClean(long position, ByteBuffer target) {
+        while(target.hasRemaining()) {
+            int positionInWindow = (int) (position % windowSize);
+            int length = Math.min(windowSize - positionInWindow, target.remaining());
+            target.put(Utils.slice(windows[(int) (position / windowSize)], positionInWindow, length));
+            position += length;
+        }
+    }
+}
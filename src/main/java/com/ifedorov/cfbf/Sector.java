@@ -1,6 +1,7 @@
 package com.ifedorov.cfbf;
 
 import java.io.OutputStream;
+import java.nio.ByteBuffer;
 
 public interface Sector extends DataView{
     int getPosition();
@@ -41,6 +42,11 @@ public interface Sector extends DataView{
             return view.getData();
         }
 
+        @Override
+        public ByteBuffer asByteBuffer() {
+            return view.asByteBuffer();
+        }
+
         @Override
         public DataView subView(int start, int end) {
             return view.subView(start, end);
@@ -79,5 +85,9 @@ public interface Sector extends DataView{
         public static DataView from(byte[] data) {
             return DataView.from(data);
         }
+
+        public static DataView from(ByteBuffer data) {
+            return DataView.from(data);
+        }
     }
 }
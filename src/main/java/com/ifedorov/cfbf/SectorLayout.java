@@ -0,0 +1,251 @@
+package com.ifedorov.cfbf;
+
+import com.google.common.base.Verify;
+import com.google.common.io.ByteStreams;
+import com.ifedorov.cfbf.alloc.Extents;
+import com.ifedorov.cfbf.stream.MiniStreamRW;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.Buffer;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.WritableByteChannel;
+import java.util.Arrays;
+
+class SectorLayout {
+
+    interface Directory {
+        int getNumberOfSectors();
+        void setMiniStream(int startingSector, long size);
+        void copyTo(WritableByteChannel channel);
+    }
+
+    public static final int WRITE_BUFFER_SECTORS = 64;
+    private final Header.Version version;
+    private final int sectorSize;
+    private final int miniStreamCutoffSize = Utils.toInt(Header.MINI_STREAM_CUTOFF_SIZE);
+    private final WritableByteChannel sink;
+    private final byte[] buffer;
+    private final ByteBuffer miniStreamSector;
+    private final Extents miniStreamChain = new Extents();
+    private final DataView headerView = new DataView.SimpleDataView(new byte[Header.HEADER_LENGTH]);
+    private final Header header;
+    private int[] fat = new int[WRITE_BUFFER_SECTORS];
+    private int sectorCount;
+    private int[] miniFat = new int[WRITE_BUFFER_SECTORS];
+    private int miniSectorCount;
+
+    SectorLayout(Header.Version version, WritableByteChannel sink) {
+        this.version = version;
+        this.sectorSize = version.getSectorSize();
+        this.sink = sink;
+        this.buffer = sink == null ? null : new byte[sectorSize * WRITE_BUFFER_SECTORS];
+        this.miniStreamSector = ByteBuffer.allocate(sectorSize);
+        this.header = Header.empty(headerView, version);
+    }
+
+    int write(long size, InputStream data) throws IOException {
+        if(size == 0) {
+            return Utils.ENDOFCHAIN_MARK_INT;
+        }
+        Verify.verify(version == Header.Version.V4 || size <= StreamDirectoryEntry.MAXIMUM_STREAM_SIZE_VERSION_3, "Version 3 compound file cannot hold a stream larger than 2 GB: " + size);
+        if(size < miniStreamCutoffSize) {
+            return writeMini((int) size, data);
+        } else {
+            int firstSector = sectorCount;
+            writeRegular(data, size);
+            return firstSector;
+        }
+    }
+
+    long writeRegular(InputStream data, long size) throws IOException {
+        long written = 0;
+        int previousSector = -1;
+        while(size < 0 || written < size) {
+            int toRead = size < 0 ? sectorSize * WRITE_BUFFER_SECTORS : (int) Math.min(sectorSize * WRITE_BUFFER_SECTORS, size - written);
+            int read = sink == null ? toRead : ByteStreams.read(data, buffer, 0, toRead);
+            if(read == 0) {
+                break;
+            }
+            int sectors = (read + sectorSize - 1) / sectorSize;
+            if(sink != null) {
+                Arrays.fill(buffer, read, sectors * sectorSize, (byte) 0);
+                Utils.writeFully(sink, ByteBuffer.wrap(buffer, 0, sectors * sectorSize));
+            }
+            for (int i = 0; i < sectors; i++) {
+                previousSector = nextSector(previousSector);
+            }
+            written += read;
+            if(read < toRead) {
+                break;
+            }
+        }
+        Verify.verify(size < 0 || written == size, String.format("Stream ended before its declared size: %s < %s", written, size));
+        return written;
+    }
+
+    private int writeMini(int size, InputStream data) throws IOException {
+        int miniSectorSize = MiniStreamRW.MINI_STREAM_CHUNK_SIZE;
+        int firstMiniSector = miniSectorCount;
+        int previousMiniSector = -1;
+        for (int i = 0; i < size; i += miniSectorSize) {
+            if(miniFat.length == miniSectorCount) {
+                miniFat = Arrays.copyOf(miniFat, miniSectorCount * 2);
+            }
+            previousMiniSector = link(miniFat, previousMiniSector, miniSectorCount++);
+            int length = Math.min(miniSectorSize, size - i);
+            if(sink != null) {
+                int read = ByteStreams.read(data, miniStreamSector.array(), miniStreamSector.position(), length);
+                Verify.verify(read == length, String.format("Stream ended before its declared size: %s < %s", i + read, size));
+            }
+            ((Buffer) miniStreamSector).position(miniStreamSector.position() + miniSectorSize);
+            if(!miniStreamSector.hasRemaining()) {
+                flushMiniStreamSector();
+            }
+        }
+        return firstMiniSector;
+    }
+
+    private void flushMiniStreamSector() {
+        if(sink != null) {
+            Utils.writeFully(sink, ByteBuffer.wrap(miniStreamSector.array()));
+            Arrays.fill(miniStreamSector.array(), (byte) 0);
+        }
+        ((Buffer) miniStreamSector).clear();
+        miniStreamChain.add(nextSector(miniStreamChain.isEmpty() ? -1 : miniStreamChain.getLastPosition()));
+    }
+
+    boolean isDryRun() {
+        return sink == null;
+    }
+
+    int getSectorCount() {
+        return sectorCount;
+    }
+
+    int getMiniStreamCutoffSize() {
+        return miniStreamCutoffSize;
+    }
+
+    private int nextSector() {
+        if(fat.length == sectorCount) {
+            fat = Arrays.copyOf(fat, sectorCount * 2);
+        }
+        return sectorCount++;
+    }
+
+    private int nextSector(int previousSector) {
+        int sector = nextSector();
+        return link(fat, previousSector, sector);
+    }
+
+    private void markSector(int mark) {
+        int sector = nextSector();
+        fat[sector] = mark;
+    }
+
+    private int link(int[] table, int previous, int next) {
+        table[next] = Utils.ENDOFCHAIN_MARK_INT;
+        if(previous >= 0) {
+            table[previous] = next;
+        }
+        return next;
+    }
+
+    void finish(Directory directory) throws IOException {
+        if(miniStreamSector.position() > 0) {
+            flushMiniStreamSector();
+        }
+        directory.setMiniStream(miniStreamChain.isEmpty() ? Utils.ENDOFCHAIN_MARK_INT : miniStreamChain.getPosition(0), (long) miniSectorCount * MiniStreamRW.MINI_STREAM_CHUNK_SIZE);
+
+        int entriesInOneSector = sectorSize / 4;
+        int miniFatSectors = (miniSectorCount + entriesInOneSector - 1) / entriesInOneSector;
+        if(miniFatSectors > 0) {
+            header.setFirstMinifatSectorLocation(sectorCount);
+            header.setNumberOfMiniFatSectors(miniFatSectors);
+            writeTable(miniFat, miniSectorCount, miniFatSectors);
+        }
+
+        header.setFirstDirectorySectorLocation(sectorCount);
+        header.setNumberOfDirectorySectors(directory.getNumberOfSectors());
+        int previousSector = -1;
+        for (int i = 0; i < directory.getNumberOfSectors(); i++) {
+            previousSector = nextSector(previousSector);
+        }
+        if(sink != null) {
+            directory.copyTo(sink);
+        }
+
+        int fatSectors = 0;
+        int difatSectors = 0;
+        while(true) {
+            int totalSectors = sectorCount + fatSectors + difatSectors;
+            int requiredFatSectors = (totalSectors + entriesInOneSector - 1) / entriesInOneSector;
+            int fatSectorsInDifat = Math.max(0, requiredFatSectors - Header.DIFAT_ENTRIES_LIMIT_IN_HEADER);
+            int requiredDifatSectors = (fatSectorsInDifat + entriesInOneSector - 2) / (entriesInOneSector - 1);
+            if(requiredFatSectors == fatSectors && requiredDifatSectors == difatSectors) {
+                break;
+            }
+            fatSectors = requiredFatSectors;
+            difatSectors = requiredDifatSectors;
+        }
+        int firstFatSector = sectorCount;
+        for (int i = 0; i < fatSectors; i++) {
+            markSector(Utils.FATSECT_MARK_INT);
+        }
+        int firstDifatSector = sectorCount;
+        for (int i = 0; i < difatSectors; i++) {
+            markSector(Utils.DISECT_MARK_INT);
+        }
+        header.setNumberOfFatSectors(fatSectors);
+        for (int i = 0; i < Math.min(fatSectors, Header.DIFAT_ENTRIES_LIMIT_IN_HEADER); i++) {
+            header.registerFatSector(firstFatSector + i);
+        }
+        if(difatSectors > 0) {
+            header.setFirstDifatSectorLocation(firstDifatSector);
+            header.setNumberOfDifatSectors(difatSectors);
+        }
+        if(sink == null) {
+            return;
+        }
+        writeTable(fat, sectorCount, fatSectors);
+
+        int fatSectorsInOneDifatSector = entriesInOneSector - 1;
+        int fatSector = Header.DIFAT_ENTRIES_LIMIT_IN_HEADER;
+        for (int i = 0; i < difatSectors; i++) {
+            ByteBuffer difatSector = ByteBuffer.allocate(sectorSize).order(ByteOrder.LITTLE_ENDIAN);
+            for (int j = 0; j < fatSectorsInOneDifatSector; j++, fatSector++) {
+                difatSector.putInt(fatSector < fatSectors ? firstFatSector + fatSector : Utils.FREESECT_MARK_OR_NOSTREAM_INT);
+            }
+            difatSector.putInt(i == difatSectors - 1 ? Utils.ENDOFCHAIN_MARK_INT : firstDifatSector + i + 1);
+            ((Buffer) difatSector).flip();
+            Utils.writeFully(sink, difatSector);
+        }
+    }
+
+    private void writeTable(int[] table, int entries, int tableSectors) {
+        int entriesInOneSector = sectorSize / 4;
+        int previousSector = -1;
+        for (int i = 0; i < tableSectors; i++) {
+            if(table != fat) {
+                previousSector = nextSector(previousSector);
+            }
+            if(sink != null) {
+                ByteBuffer sector = ByteBuffer.allocate(sectorSize).order(ByteOrder.LITTLE_ENDIAN);
+                for (int j = i * entriesInOneSector; j < (i + 1) * entriesInOneSector; j++) {
+                    sector.putInt(j < entries ? table[j] : Utils.FREESECT_MARK_OR_NOSTREAM_INT);
+                }
+                ((Buffer) sector).flip();
+                Utils.writeFully(sink, sector);
+            }
+        }
+    }
+
+    ByteBuffer header() {
+        ByteBuffer result = ByteBuffer.allocate(sectorSize);
+        result.put(headerView.getData());
+        ((Buffer) result).clear();
+        return result;
+    }
+}
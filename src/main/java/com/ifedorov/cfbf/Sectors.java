@@ -2,51 +2,206 @@ package com.ifedorov.cfbf;
 
 import com.google.common.base.Verify;
 import com.google.common.collect.Lists;
+import com.ifedorov.cfbf.alloc.AllocationPolicy;
 
+import java.nio.ByteBuffer;
+import java.nio.channels.WritableByteChannel;
+import java.util.BitSet;
 import java.util.List;
-
-import static com.ifedorov.cfbf.Header.HEADER_LENGTH;
+import java.util.concurrent.CompletableFuture;
 
 public class Sectors {
 
     private DataView dataView;
     private int sectorShift;
     private Header header;
-    private final List<Sector> sectors = Lists.newArrayList();
+    //Skip first chunk designated for Header, if it is already there
+    private final int firstSectorChunk;
+    private final BitSet freeSectors = new BitSet();
+    //Sectors freed since the last commit are still referenced by the committed file
+    private final BitSet releasedSectors = new BitSet();
+    private AllocationPolicy allocationPolicy = AllocationPolicy.BEST_FIT;
 
     public Sectors(DataView dataView, Header header) {
         this.dataView = dataView;
         this.sectorShift = header.getSectorShift();
         this.header = header;
-        readSectors();
+        this.firstSectorChunk = dataView.isEmpty() ? 0 : 1;
+        if(!(dataView instanceof DataView.FixedSizeChunkedDataView)) {
+            Verify.verify(this.dataView.getSize() % sectorShift == 0);
+        }
     }
 
     public Sector sector(int position) {
-        return sectors.get(position);
+        if(position < 0 || position >= getNumberOfSectors()) {
+            throw new IndexOutOfBoundsException("Sector position: " + position + ", number of sectors: " + getNumberOfSectors());
+        }
+        return Sector.from(sectorView(position), position);
     }
 
-    private void readSectors() {
-        //Skip first 512 bytes designated for Header
-        if(!this.dataView.isEmpty()) {
-//            DataView sectorsDataView = this.dataView.subView(header.getSectorShift());
-            Verify.verify(this.dataView.getSize() % sectorShift == 0);
-            for (int i = 1; i < dataView.getSize() / sectorShift; i++) {
-                sectors.add(Sector.from(dataView.subView(i * sectorShift, (i + 1) * sectorShift), sectors.size()));
-            }
+    public int getNumberOfSectors() {
+        if(dataView instanceof DataView.FixedSizeChunkedDataView) {
+            return ((DataView.FixedSizeChunkedDataView) dataView).getChunkCount() - firstSectorChunk;
+        } else {
+            return dataView.getSize() / sectorShift - firstSectorChunk;
+        }
+    }
+
+    public void pin(int position) {
+        if(dataView instanceof DataView.FixedSizeChunkedDataView) {
+            ((DataView.FixedSizeChunkedDataView) dataView).pin(position + firstSectorChunk);
+        }
+    }
+
+    public void read(int position, int offset, ByteBuffer target) {
+        if(dataView instanceof FileDataView) {
+            ((FileDataView) dataView).read(position + firstSectorChunk, offset, target);
+            return;
+        }
+        while(target.hasRemaining()) {
+            Sector sector = sector(position++);
+            int length = Math.min(sector.getSize() - offset, target.remaining());
+            target.put(Utils.slice(sector.asByteBuffer(), offset, length));
+            offset = 0;
+        }
+    }
+
+    public CompletableFuture<Void> readAsync(int position, int offset, ByteBuffer target) {
+        if(dataView instanceof FileDataView) {
+            return ((FileDataView) dataView).readAsync(position + firstSectorChunk, offset, target);
+        }
+        read(position, offset, target);
+        return CompletableFuture.completedFuture(null);
+    }
+
+    public void write(int position, int offset, ByteBuffer source) {
+        while(source.hasRemaining()) {
+            Sector sector = sector(position++);
+            byte[] bytes = new byte[Math.min(sector.getSize() - offset, source.remaining())];
+            source.get(bytes);
+            sector.writeAt(offset, bytes);
+            offset = 0;
+        }
+    }
+
+    public void transferTo(int position, int offset, int length, WritableByteChannel channel) {
+        if(dataView instanceof FileDataView) {
+            ((FileDataView) dataView).transferTo(position + firstSectorChunk, offset, length, channel);
+            return;
+        }
+        while(length > 0) {
+            Sector sector = sector(position++);
+            int partLength = Math.min(sector.getSize() - offset, length);
+            Utils.writeFully(channel, Utils.slice(sector.asByteBuffer(), offset, partLength));
+            length -= partLength;
+            offset = 0;
+        }
+    }
+
+    public boolean requiresShadowCopy(int position) {
+        if(dataView instanceof FileDataView) {
+            FileDataView fileDataView = (FileDataView) dataView;
+            int chunk = position + firstSectorChunk;
+            return fileDataView.isCommitted(chunk) && fileDataView.isDirty(chunk);
+        }
+        return false;
+    }
+
+    public int relocate(int position) {
+        Verify.verify(dataView instanceof FileDataView, "Only file backed sectors can be relocated");
+        FileDataView fileDataView = (FileDataView) dataView;
+        int relocatedPosition = allocate().getPosition();
+        fileDataView.swap(position + firstSectorChunk, relocatedPosition + firstSectorChunk);
+        fileDataView.clearDirty(position + firstSectorChunk);
+        return relocatedPosition;
+    }
+
+    private DataView sectorView(int position) {
+        int chunk = position + firstSectorChunk;
+        if(dataView instanceof DataView.FixedSizeChunkedDataView) {
+            return ((DataView.FixedSizeChunkedDataView) dataView).chunk(chunk);
+        } else {
+            return dataView.subView(chunk * sectorShift, (chunk + 1) * sectorShift);
         }
     }
 
     public Sector allocate() {
-        Sector allocated = Sector.from(dataView.allocate(header.getSectorShift()), sectors.size());
+        return allocate(1).get(0);
+    }
+
+    public List<Sector> allocate(int count) {
+        Verify.verify(count >= 0, "Number of sectors cannot be negative: " + count);
+        List<Sector> allocated = Lists.newArrayListWithCapacity(count);
+        if(count == 0) {
+            return allocated;
+        }
+        int numberOfSectors = getNumberOfSectors();
+        for (int position : allocationPolicy.allocate(freeSectors, numberOfSectors, count)) {
+            if(position < numberOfSectors) {
+                Verify.verify(freeSectors.get(position), "Allocation policy chose sector in use: %s", position);
+                allocated.add(reuse(position));
+            } else {
+                Verify.verify(position == getNumberOfSectors(), "Allocation policy chose sector out of order: %s", position);
+                allocated.add(append());
+            }
+        }
+        return allocated;
+    }
+
+    private Sector reuse(int position) {
+        freeSectors.clear(position);
+        if(dataView instanceof FileDataView) {
+            ((FileDataView) dataView).reclaim(position + firstSectorChunk);
+        }
+        Sector reused = sector(position);
+        reused.fill(Utils.FREESECT_MARK_OR_NOSTREAM);
+        return reused;
+    }
+
+    private Sector append() {
+        int position = getNumberOfSectors();
+        Sector allocated = Sector.from(dataView.allocate(header.getSectorShift()), position);
         allocated.fill(Utils.FREESECT_MARK_OR_NOSTREAM);
-        sectors.add(allocated);
         return allocated;
     }
 
+    public void setAllocationPolicy(AllocationPolicy allocationPolicy) {
+        this.allocationPolicy = allocationPolicy;
+    }
+
+    public void markFree(int position) {
+        freeSectors.set(position);
+    }
+
+    public void free(int position) {
+        if(isCommitted(position)) {
+            releasedSectors.set(position);
+        } else {
+            freeSectors.set(position);
+        }
+    }
+
+    public int getNumberOfFreeSectors() {
+        return freeSectors.cardinality() + releasedSectors.cardinality();
+    }
+
+    public boolean isCommitted(int position) {
+        return dataView instanceof FileDataView && ((FileDataView) dataView).isCommitted(position + firstSectorChunk);
+    }
+
+    public void commit() {
+        if(!(dataView instanceof FileDataView)) {
+            throw new IllegalStateException("Compound file is not backed by a file");
+        }
+        ((FileDataView) dataView).commit();
+        freeSectors.or(releasedSectors);
+        releasedSectors.clear();
+    }
+
     public DIFATSector allocateDIFAT() {
         DIFATSector sector = new DIFATSector(allocate());
         sector.fill(Utils.FREESECT_MARK_OR_NOSTREAM);
-        sector.subView(508).writeAt(0, Utils.ENDOFCHAIN_MARK);
+        sector.subView(sector.getSize() - 4).writeAt(0, Utils.ENDOFCHAIN_MARK);
         return sector;
     }
 }
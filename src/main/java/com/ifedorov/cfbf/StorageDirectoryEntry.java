@@ -59,7 +59,7 @@ public class StorageDirectoryEntry extends DirectoryEntry {
         @Override
         public void root(DirectoryEntryNode node) {
             super.root(node);
-            StorageDirectoryEntry.this.setChild(node.value());
+            StorageDirectoryEntry.this.setChild(node == null ? null : node.value());
         }
 
     }
@@ -77,10 +77,42 @@ public class StorageDirectoryEntry extends DirectoryEntry {
         return addChild(directoryEntryChain.createStream(name, ColorFlag.RED, data));
     }
 
+    public StreamDirectoryEntry addStream(String name, long expectedSize) {
+        StreamDirectoryEntry stream = addStream(name, new byte[0]);
+        stream.reserve(expectedSize);
+        return stream;
+    }
+
     public StorageDirectoryEntry addStorage(String name) {
         return addChild(directoryEntryChain.createStorage(name, ColorFlag.RED));
     }
 
+    public void remove(String name) {
+        DirectoryEntryNode node = tree.root();
+        while(node != null) {
+            int result = compareNames(name, node.value().getDirectoryEntryName());
+            if(result == 0) {
+                break;
+            }
+            node = result > 0 ? node.rightChild() : node.leftChild();
+        }
+        if(node == null) {
+            throw new NoSuchElementException("Directory entry does not exist: " + name);
+        }
+        DirectoryEntry entry = node.value();
+        tree.delete(node);
+        free(entry);
+    }
+
+    private void free(DirectoryEntry entry) {
+        if(entry instanceof StorageDirectoryEntry) {
+            ((StorageDirectoryEntry) entry).eachChild(this::free);
+        } else {
+            ((StreamDirectoryEntry) entry).free();
+        }
+        directoryEntryChain.free(entry);
+    }
+
     public <T extends DirectoryEntry> T findChild(Predicate<DirectoryEntry> predicate) {
         AtomicReference<DirectoryEntry> result = new AtomicReference<>();
         eachChild((directoryEntry) -> result.set(directoryEntry), predicate);
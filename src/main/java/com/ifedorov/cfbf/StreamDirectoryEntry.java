@@ -3,10 +3,17 @@ package com.ifedorov.cfbf;
 import com.google.common.base.Verify;
 import com.ifedorov.cfbf.stream.StreamHolder;
 
+import java.io.InputStream;
 import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.WritableByteChannel;
+import java.util.concurrent.CompletableFuture;
 
 public class StreamDirectoryEntry extends DirectoryEntry {
 
+    public static final long MAXIMUM_STREAM_SIZE_VERSION_3 = 0x80000000L;
+    public static final int STREAM_READ_CHUNK_SIZE = 1 << 20;
     private final StreamHolder streamHolder;
 
     public StreamDirectoryEntry(int id, DirectoryEntryChain directoryEntryChain, DataView view, StreamHolder streamHolder) {
@@ -23,19 +30,76 @@ public class StreamDirectoryEntry extends DirectoryEntry {
     }
 
     public void copyTo(OutputStream os) {
-        streamHolder.copyTo(getStreamStartingSector(), getStreamSize(), os);
+        copyTo(Channels.newChannel(os));
+    }
+
+    public void copyTo(WritableByteChannel channel) {
+        if(hasStreamData() && getStreamSize() > 0) {
+            streamHolder.copyTo(getStreamStartingSector(), getStreamSize(), channel);
+        }
+    }
+
+    public InputStream getInputStream() {
+        return new InputStream() {
+            private long position;
+
+            @Override
+            public int read() {
+                byte[] single = new byte[1];
+                return read(single, 0, 1) < 0 ? -1 : single[0] & 0xFF;
+            }
+
+            @Override
+            public int read(byte[] b, int off, int len) {
+                long size = getStreamSize();
+                if(position >= size) {
+                    return -1;
+                }
+                int length = (int) Math.min(Math.min(len, STREAM_READ_CHUNK_SIZE), size - position);
+                System.arraycopy(StreamDirectoryEntry.this.read(position, position + length), 0, b, off, length);
+                position += length;
+                return length;
+            }
+        };
     }
 
     public void setStreamData(byte[] data) {
-        setStreamStartingSector(streamHolder.setStreamData(data));
+        setStreamStartingSector(streamHolder.setStreamData(getStreamStartingSector(), getStreamSize(), data));
         setStreamSize(data.length);
     }
 
-    public byte[] read(int fromIncl, int toExcl) {
+    public void reserve(long capacity) {
+        Verify.verify(isVersion4() || capacity <= MAXIMUM_STREAM_SIZE_VERSION_3, "Version 3 compound file cannot hold a stream larger than 2 GB: " + capacity);
+        setStreamStartingSector(streamHolder.reserve(getStreamStartingSector(), getStreamSize(), capacity));
+    }
+
+    void free() {
+        if(hasStreamData()) {
+            streamHolder.free(getStreamStartingSector(), getStreamSize());
+        }
+        setStreamStartingSector(Utils.ENDOFCHAIN_MARK_INT);
+        setStreamSize(0);
+    }
+
+    public byte[] read(long fromIncl, long toExcl) {
         return streamHolder.read(getStreamStartingSector(), getStreamSize(), fromIncl, toExcl);
     }
 
-    public void writeAt(int position, byte[] data) {
+    public CompletableFuture<ByteBuffer> readAsync(long fromIncl, long toExcl) {
+        Verify.verify(fromIncl >= 0 && fromIncl <= toExcl, String.format("Invalid range: start = %s, end = %s", fromIncl, toExcl));
+        Verify.verify(toExcl <= getStreamSize(), String.format("Cannot read beyond the end of the stream: start = %s, end = %s", fromIncl, toExcl));
+        return streamHolder.readAsync(getStreamStartingSector(), getStreamSize(), fromIncl, toExcl);
+    }
+
+    public CompletableFuture<ByteBuffer> getStreamDataAsync() {
+        if(hasStreamData() && getStreamSize() > 0) {
+            return readAsync(0, getStreamSize());
+        } else {
+            return CompletableFuture.completedFuture(ByteBuffer.allocate(0));
+        }
+    }
+
+    public void writeAt(long position, byte[] data) {
         Verify.verify(position >= 0, "Starting position should be greater than 0: start = " + position);
         Verify.verify(position + data.length <= getStreamSize(), String.format("Cannot write beyond the end of the stream: start = %s, end = %s", position, position + data.length));
         streamHolder.writeAt(getStreamStartingSector(), getStreamSize(), position, data);
@@ -47,12 +111,25 @@ public class StreamDirectoryEntry extends DirectoryEntry {
         setStreamSize(getStreamSize() + data.length);
     }
 
-    private void setStreamSize(int length) {
-        view.subView(FLAG_POSITION.STREAM_SIZE, FLAG_POSITION.STREAM_SIZE + 4).writeAt(0, Utils.toBytesLE(length, 4));
+    void setStreamSize(long length) {
+        Verify.verify(isVersion4() || length <= MAXIMUM_STREAM_SIZE_VERSION_3, "Version 3 compound file cannot hold a stream larger than 2 GB: " + length);
+        view.subView(FLAG_POSITION.STREAM_SIZE, FLAG_POSITION.STREAM_SIZE + 8).writeAt(0, Utils.toBytesLE(length, 8));
+    }
+
+    public long getStreamSize() {
+        if(isVersion4()) {
+            return Utils.toLongLE(view.subView(FLAG_POSITION.STREAM_SIZE, FLAG_POSITION.STREAM_SIZE + 8).getData());
+        } else {
+            return Utils.toLongLE(view.subView(FLAG_POSITION.STREAM_SIZE, FLAG_POSITION.STREAM_SIZE + 4).getData());
+        }
+    }
+
+    private boolean isVersion4() {
+        return directoryEntryChain.getVersion() == Header.Version.V4;
     }
 
-    public int getStreamSize() {
-        return Utils.toInt(view.subView(FLAG_POSITION.STREAM_SIZE, FLAG_POSITION.STREAM_SIZE + 4).getData());
+    public boolean relocateModifiedSectors() {
+        return hasStreamData() && streamHolder.relocateModifiedSectors(getStreamStartingSector(), getStreamSize(), this::setStreamStartingSector);
     }
 
     public boolean hasStreamData() {
@@ -5,7 +5,12 @@ import com.google.common.base.Verify;
 import com.google.common.collect.FluentIterable;
 import org.apache.commons.lang3.ArrayUtils;
 
+import java.io.IOException;
 import java.io.UnsupportedEncodingException;
+import java.nio.Buffer;
+import java.nio.ByteBuffer;
+import java.nio.channels.GatheringByteChannel;
+import java.nio.channels.WritableByteChannel;
 import java.nio.charset.StandardCharsets;
 import java.util.Arrays;
 import java.util.Date;
@@ -230,6 +235,38 @@ public class Utils {
         }
     }
 
+    public static ByteBuffer slice(ByteBuffer buffer, int position, int length) {
+        ByteBuffer duplicate = buffer.duplicate();
+        ((Buffer) duplicate).limit(position + length).position(position);
+        return duplicate.slice();
+    }
+
+    public static void writeFully(WritableByteChannel channel, ByteBuffer buffer) {
+        writeFully(channel, new ByteBuffer[]{buffer}, 1);
+    }
+
+    public static void writeFully(WritableByteChannel channel, ByteBuffer[] buffers, int length) {
+        try {
+            if(channel instanceof GatheringByteChannel) {
+                long remaining = 0;
+                for (int i = 0; i < length; i++) {
+                    remaining += buffers[i].remaining();
+                }
+                while(remaining > 0) {
+                    remaining -= ((GatheringByteChannel) channel).write(buffers, 0, length);
+                }
+            } else {
+                for (int i = 0; i < length; i++) {
+                    while(buffers[i].hasRemaining()) {
+                        channel.write(buffers[i]);
+                    }
+                }
+            }
+        } catch (IOException e) {
+            throw new RuntimeException("Unable to write data to channel", e);
+        }
+    }
+
     public static byte[] copy(byte[] bytes) {
         byte[] copy = new byte[bytes.length];
         System.arraycopy(bytes, 0, copy, 0, bytes.length);
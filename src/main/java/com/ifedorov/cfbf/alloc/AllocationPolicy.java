@@ -0,0 +1,69 @@
+package com.ifedorov.cfbf.alloc;
+
+import java.util.BitSet;
+
+public interface AllocationPolicy {
+
+    AllocationPolicy APPEND_ONLY = new AppendOnly();
+    AllocationPolicy FIRST_FIT = new ContiguousFit(false);
+    AllocationPolicy BEST_FIT = new ContiguousFit(true);
+
+    //Chooses positions for count sectors out of the free ones below numberOfPositions.
+    //Positions at or beyond numberOfPositions are appended, so they have to follow numberOfPositions in ascending order
+    int[] allocate(BitSet freePositions, int numberOfPositions, int count);
+
+    static int[] run(int start, int count) {
+        int[] positions = new int[count];
+        for (int i = 0; i < count; i++) {
+            positions[i] = start + i;
+        }
+        return positions;
+    }
+
+    class AppendOnly implements AllocationPolicy {
+        @Override
+        public int[] allocate(BitSet freePositions, int numberOfPositions, int count) {
+            return run(numberOfPositions, count);
+        }
+    }
+
+    class ContiguousFit implements AllocationPolicy {
+
+        private final boolean bestFit;
+
+        public ContiguousFit(boolean bestFit) {
+            this.bestFit = bestFit;
+        }
+
+        @Override
+        public int[] allocate(BitSet freePositions, int numberOfPositions, int count) {
+            if(count == 0) {
+                return new int[0];
+            }
+            int start = findFreeRun(freePositions, numberOfPositions, count);
+            if(start < 0) {
+                //Continue the free run at the end, if any, with appended positions
+                start = freePositions.previousClearBit(numberOfPositions - 1) + 1;
+            }
+            return run(start, count);
+        }
+
+        private int findFreeRun(BitSet freePositions, int numberOfPositions, int count) {
+            int bestStart = -1;
+            int bestLength = Integer.MAX_VALUE;
+            int end;
+            for (int start = freePositions.nextSetBit(0); start >= 0 && start < numberOfPositions; start = freePositions.nextSetBit(end)) {
+                end = Math.min(freePositions.nextClearBit(start), numberOfPositions);
+                int length = end - start;
+                if(length >= count && length < bestLength) {
+                    if(!bestFit || length == count) {
+                        return start;
+                    }
+                    bestStart = start;
+                    bestLength = length;
+                }
+            }
+            return bestStart;
+        }
+    }
+}
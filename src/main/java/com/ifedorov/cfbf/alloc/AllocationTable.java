@@ -2,23 +2,44 @@ package com.ifedorov.cfbf.alloc;
 
 import com.google.common.base.Verify;
 import com.google.common.collect.Lists;
+import com.google.common.collect.Maps;
 import com.ifedorov.cfbf.Sector;
 import com.ifedorov.cfbf.Sectors;
 import com.ifedorov.cfbf.Utils;
 
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.util.Arrays;
 import java.util.List;
+import java.util.Map;
+import java.util.function.IntConsumer;
 
 public class AllocationTable {
 
-    public static final Integer ENTRIES_IN_ONE_FAT_SECTOR = 128;
     protected final Sectors sectors;
-    protected final List<Integer> sectorChain;
+    protected final SectorChain sectorChain;
     private final int sectorSize;
+    protected final int entriesInOneFatSector;
+    private int[] entries;
+    //Extents of chains by their starting sector, appended to as their last sector gets a successor
+    private final Map<Integer, Extents> chains = Maps.newHashMap();
+    private final Map<Integer, Integer> chainsByLastSector = Maps.newHashMap();
 
     public AllocationTable(Sectors sectors, List<Integer> sectorChain, int sectorSize) {
+        this(sectors, SectorChain.of(sectorChain), sectorSize);
+    }
+
+    public AllocationTable(Sectors sectors, SectorChain sectorChain, int sectorSize) {
         this.sectors = sectors;
         this.sectorChain = sectorChain;
         this.sectorSize = sectorSize;
+        this.entriesInOneFatSector = sectorSize / 4;
+        sectorChain.forEachPosition(sectors::pin);
+        this.entries = new int[sectorChain.size() * entriesInOneFatSector];
+        for (int i = 0; i < sectorChain.size(); i++) {
+            ByteBuffer.wrap(sectors.sector(sectorChain.getPosition(i)).getData()).order(ByteOrder.LITTLE_ENDIAN).asIntBuffer()
+                    .get(entries, i * entriesInOneFatSector, entriesInOneFatSector);
+        }
     }
 
     public List<Integer> buildChain(int currentSector) {
@@ -34,42 +55,158 @@ public class AllocationTable {
         return chain;
     }
 
-    private int getValueAt(int position) {
-        int sectorNumber = position * 4 / sectorSize;
-        int shiftInsideSector = position * 4 % sectorSize;
-        Verify.verify(sectorNumber <= sectorChain.size());
-        return Utils.toInt(sectors.sector(sectorChain.get(sectorNumber)).subView(shiftInsideSector, shiftInsideSector + 4).getData());
+    public Extents buildExtents(int startingSector) {
+        Extents cached = chains.get(startingSector);
+        if(cached != null) {
+            return cached;
+        }
+        Extents extents = new Extents();
+        if(Utils.isEndOfChain(startingSector)) {
+            return extents;
+        }
+        int currentSector = startingSector;
+        extents.add(currentSector);
+        while (!Utils.isEndOfChain(currentSector = getValueAt(currentSector))) {
+            extents.add(currentSector);
+        }
+        if(!chainsByLastSector.containsKey(currentSector = extents.getLastPosition())) {
+            chains.put(startingSector, extents);
+            chainsByLastSector.put(currentSector, startingSector);
+        }
+        return extents;
+    }
+
+    protected int getValueAt(int position) {
+        Verify.verify(position >= 0 && position < entries.length);
+        return entries[position];
     }
 
     public void registerSector(Integer sectorPosition, Integer previousSectorPosition) {
-        getFatSectorPointingToAllocatedSector(sectorPosition).writeAt(calculatePositionInsideFatSector(sectorPosition), Utils.ENDOFCHAIN_MARK);
+        registerChain(new int[]{sectorPosition}, previousSectorPosition);
+    }
+
+    public void registerChain(int[] chain, Integer previousSectorPosition) {
+        if(chain.length == 0) {
+            return;
+        }
+        ensureCapacity(Arrays.stream(chain).max().getAsInt());
+        for (int position : chain) {
+            invalidateChains(position);
+        }
+        for (int i = 0; i < chain.length - 1; i++) {
+            entries[chain[i]] = chain[i + 1];
+        }
+        entries[chain[chain.length - 1]] = Utils.ENDOFCHAIN_MARK_INT;
+        int runStart = 0;
+        for (int i = 1; i <= chain.length; i++) {
+            if(i == chain.length || chain[i] != chain[i - 1] + 1) {
+                writeEntries(chain[runStart], chain[i - 1] + 1);
+                runStart = i;
+            }
+        }
         if(previousSectorPosition != null) {
-            getFatSectorPointingToAllocatedSector(previousSectorPosition).writeAt(calculatePositionInsideFatSector(previousSectorPosition), Utils.toBytesLE(sectorPosition, 4));
+            Integer startingSector = chainsByLastSector.remove(previousSectorPosition);
+            setValueAt(previousSectorPosition, chain[0]);
+            if(startingSector != null) {
+                Extents extents = chains.get(startingSector);
+                for (int position : chain) {
+                    extents.add(position);
+                }
+                chainsByLastSector.put(chain[chain.length - 1], startingSector);
+            }
         }
     }
 
-    protected Sector getFatSectorPointingToAllocatedSector(Integer sectorPosition) {
-        Integer fatSectorInChain = sectorPosition / ENTRIES_IN_ONE_FAT_SECTOR;
-        if(sectorChain.size() <= fatSectorInChain) {
-            Sector targetSector = null;
-            while(sectorChain.size() <= fatSectorInChain) {
-                targetSector = allocateNewSector();
+    public List<Integer> freeChain(int startingSector) {
+        List<Integer> chain = buildChain(startingSector);
+        chain.forEach(this::free);
+        return chain;
+    }
+
+    public List<Integer> truncateChain(int startingSector, int length) {
+        Verify.verify(length > 0, "Truncated chain should keep at least one sector: " + length);
+        List<Integer> chain = buildChain(startingSector);
+        Verify.verify(length <= chain.size(), String.format("Cannot truncate chain of %s sectors to %s sectors", chain.size(), length));
+        List<Integer> tail = chain.subList(length, chain.size());
+        if(!tail.isEmpty()) {
+            setValueAt(chain.get(length - 1), Utils.ENDOFCHAIN_MARK_INT);
+            tail.forEach(this::free);
+        }
+        return tail;
+    }
+
+    public void free(int position) {
+        setValueAt(position, Utils.FREESECT_MARK_OR_NOSTREAM_INT);
+    }
+
+    public void forEachFreeEntry(int numberOfEntries, IntConsumer consumer) {
+        for (int i = 0; i < Math.min(numberOfEntries, entries.length); i++) {
+            if(entries[i] == Utils.FREESECT_MARK_OR_NOSTREAM_INT) {
+                consumer.accept(i);
             }
-            return targetSector;
-        } else {
-            return sectors.sector(sectorChain.get(fatSectorInChain));
+        }
+    }
+
+    protected void setValueAt(int position, int value) {
+        Sector fatSector = getFatSectorPointingToAllocatedSector(position);
+        invalidateChains(position);
+        entries[position] = value;
+        fatSector.writeAt(calculatePositionInsideFatSector(position), Utils.toBytesLE(value, 4));
+    }
+
+    private void writeEntries(int fromIncl, int toExcl) {
+        while(fromIncl < toExcl) {
+            int fatSectorInChain = fromIncl / entriesInOneFatSector;
+            int end = Math.min(toExcl, (fatSectorInChain + 1) * entriesInOneFatSector);
+            ByteBuffer encoded = ByteBuffer.allocate((end - fromIncl) * 4).order(ByteOrder.LITTLE_ENDIAN);
+            encoded.asIntBuffer().put(entries, fromIncl, end - fromIncl);
+            sectors.sector(sectorChain.getPosition(fatSectorInChain)).writeAt(calculatePositionInsideFatSector(fromIncl), encoded.array());
+            fromIncl = end;
+        }
+    }
+
+    private void invalidateChains(int position) {
+        if(chains.isEmpty()) {
+            return;
+        }
+        Integer startingSector = chainsByLastSector.remove(position);
+        if(startingSector != null) {
+            chains.remove(startingSector);
+        } else if(entries[position] >= 0) {
+            // the entry links two sectors that may be in the middle of any cached chain
+            chains.clear();
+            chainsByLastSector.clear();
+        }
+    }
+
+    protected Sector getFatSectorPointingToAllocatedSector(Integer sectorPosition) {
+        ensureCapacity(sectorPosition);
+        return sectors.sector(sectorChain.getPosition(sectorPosition / entriesInOneFatSector));
+    }
+
+    protected void ensureCapacity(int sectorPosition) {
+        while(sectorChain.size() <= sectorPosition / entriesInOneFatSector) {
+            allocateNewSector();
         }
     }
 
     protected Sector allocateNewSector() {
         Sector fatSector = sectors.allocate();
-        int sectorPosition = fatSector.getPosition();
-        sectorChain.add(sectorPosition);
+        sectorChain.addPosition(fatSector.getPosition());
+        growEntries();
         return fatSector;
     }
 
+    protected void growEntries() {
+        int previousLength = entries.length;
+        if(previousLength < sectorChain.size() * entriesInOneFatSector) {
+            entries = Arrays.copyOf(entries, sectorChain.size() * entriesInOneFatSector);
+            Arrays.fill(entries, previousLength, entries.length, Utils.FREESECT_MARK_OR_NOSTREAM_INT);
+        }
+    }
+
     protected Integer calculatePositionInsideFatSector(Integer sectorPosition) {
-        return sectorPosition % ENTRIES_IN_ONE_FAT_SECTOR * 4;
+        return sectorPosition % entriesInOneFatSector * 4;
     }
 
 }
\ No newline at end of file
@@ -4,65 +4,100 @@ import com.google.common.base.Verify;
 import com.google.common.collect.Lists;
 import com.ifedorov.cfbf.*;
 
-import java.util.Arrays;
-import java.util.LinkedList;
 import java.util.List;
-import java.util.stream.Collectors;
 
 public class DIFAT {
 
     private Sectors sectors;
     private Header header;
     private FATtoDIFATFacade faTtoDIFATFacade;
-    private LinkedList<DIFATSector> difatSectors = Lists.newLinkedList();
+    private List<DIFATSector> difatSectors = Lists.newArrayList();
+    //FAT sector positions from the header followed by those from DIFAT sectors, shared with FAT
+    private final SectorChain fatSectorChain = new SectorChain();
 
     public DIFAT(Sectors sectors, Header header, FATtoDIFATFacade faTtoDIFATFacade) {
         this.sectors = sectors;
         this.header = header;
         this.faTtoDIFATFacade = faTtoDIFATFacade;
         readDifatSectors();
+        header.getDifatEntries().forEach(fatSectorChain::addPosition);
+        difatSectors.forEach(sector -> sector.forEachRegisteredFatSector(fatSectorChain::addPosition));
     }
 
     private void readDifatSectors() {
         int firstDifatSectorLocation = header.getFirstDifatSectorLocation();
         if(!Utils.isEndOfChain(firstDifatSectorLocation)) {
+            sectors.pin(firstDifatSectorLocation);
             DIFATSector lastSector = new DIFATSector(sectors.sector(firstDifatSectorLocation));
             difatSectors.add(lastSector);
             int nextSectorPosition = -1;
             while(!Utils.isEndOfChain(nextSectorPosition = Utils.toInt(lastSector.subView(header.getSectorShift() - 4, header.getSectorShift()).getData()))) {
+                sectors.pin(nextSectorPosition);
                 difatSectors.add(lastSector = new DIFATSector(sectors.sector(nextSectorPosition)));
             }
         }
     }
 
-    public List<Integer> getFatSectorChain() {
-        List<Integer> result = Lists.newArrayList();
-        result.addAll(header.getDifatEntries());
-        result.addAll(difatSectors.stream().<Integer>flatMap(sector -> sector.getRegisteredFatSectors().stream()).mapToInt(Integer::intValue).boxed().collect(Collectors.toList()));
-        return result;
+    public SectorChain getFatSectorChain() {
+        return fatSectorChain;
+    }
+
+    public void replaceFatSector(int index, int sectorPosition) {
+        if(index < Header.DIFAT_ENTRIES_LIMIT_IN_HEADER) {
+            header.replaceFatSector(index, sectorPosition);
+        } else {
+            int indexInDifatSectors = index - Header.DIFAT_ENTRIES_LIMIT_IN_HEADER;
+            int fatSectorsLimit = header.getSectorShift() / 4 - 1;
+            difatSectors.get(indexInDifatSectors / fatSectorsLimit).replaceFatSector(indexInDifatSectors % fatSectorsLimit, sectorPosition);
+        }
+        fatSectorChain.setPosition(index, sectorPosition);
+    }
+
+    public boolean relocateModifiedSectors() {
+        boolean relocated = false;
+        for (int i = difatSectors.size() - 1; i >= 0; i--) {
+            int position = difatSectors.get(i).getPosition();
+            if(sectors.requiresShadowCopy(position)) {
+                int relocatedPosition = sectors.relocate(position);
+                difatSectors.set(i, new DIFATSector(sectors.sector(relocatedPosition)));
+                faTtoDIFATFacade.relocateDifatSectorInFAT(position, relocatedPosition);
+                if(i == 0) {
+                    header.setFirstDifatSectorLocation(relocatedPosition);
+                } else {
+                    difatSectors.get(i - 1).registerNextDifatSector(relocatedPosition);
+                }
+                relocated = true;
+            }
+        }
+        return relocated;
     }
 
     public void registerFATSector(int sectorPosition) {
         if(!header.canFitMoreDifatEntries()) {
-            DIFATSector difatSector;
-            if(difatSectors.isEmpty()) {
-                difatSector = sectors.allocateDIFAT();
-                faTtoDIFATFacade.registerDifatSectorInFAT(difatSector.getPosition());
-                header.setFirstDifatSectorLocation(difatSector.getPosition());
+            if(difatSectors.isEmpty() || !getLastDifatSector().hasFreeSpace()) {
+                DIFATSector difatSector = sectors.allocateDIFAT();
+                if(difatSectors.isEmpty()) {
+                    header.setFirstDifatSectorLocation(difatSector.getPosition());
+                } else {
+                    getLastDifatSector().registerNextDifatSector(difatSector.getPosition());
+                }
                 difatSectors.add(difatSector);
                 header.setNumberOfDifatSectors(difatSectors.size());
-            } else if(!difatSectors.getLast().hasFreeSpace()) {
-                difatSector = sectors.allocateDIFAT();
+                difatSector.registerFatSector(sectorPosition);
+                fatSectorChain.addPosition(sectorPosition);
+                //Marking the DIFAT sector may grow FAT, whose new sectors should be registered after this one
                 faTtoDIFATFacade.registerDifatSectorInFAT(difatSector.getPosition());
-                difatSectors.getLast().registerNextDifatSector(difatSector.getPosition());
-                difatSectors.add(difatSector);
-                header.setNumberOfDifatSectors(difatSectors.size());
             } else {
-                difatSector = difatSectors.getLast();
+                getLastDifatSector().registerFatSector(sectorPosition);
+                fatSectorChain.addPosition(sectorPosition);
             }
-            difatSector.registerFatSector(sectorPosition);
         } else {
             header.registerFatSector(sectorPosition);
+            fatSectorChain.addPosition(sectorPosition);
         }
     }
+
+    private DIFATSector getLastDifatSector() {
+        return difatSectors.get(difatSectors.size() - 1);
+    }
 }
@@ -0,0 +1,112 @@
+package com.ifedorov.cfbf.alloc;
+
+import com.google.common.base.Verify;
+
+import java.util.Arrays;
+import java.util.List;
+
+public class Extents {
+
+    private int[] starts = new int[4];
+    private int[] lengths = new int[4];
+    private int[] firstIndexes = new int[4];
+    private int extentCount;
+    private int sectorCount;
+
+    public static Extents of(List<Integer> chain) {
+        Extents extents = new Extents();
+        chain.forEach(extents::add);
+        return extents;
+    }
+
+    public static Extents copyOf(Extents source) {
+        Extents extents = new Extents();
+        extents.starts = Arrays.copyOf(source.starts, source.starts.length);
+        extents.lengths = Arrays.copyOf(source.lengths, source.lengths.length);
+        extents.firstIndexes = Arrays.copyOf(source.firstIndexes, source.firstIndexes.length);
+        extents.extentCount = source.extentCount;
+        extents.sectorCount = source.sectorCount;
+        return extents;
+    }
+
+    public void add(int position) {
+        if(extentCount > 0 && starts[extentCount - 1] + lengths[extentCount - 1] == position) {
+            lengths[extentCount - 1]++;
+        } else {
+            if(extentCount == starts.length) {
+                starts = Arrays.copyOf(starts, extentCount * 2);
+                lengths = Arrays.copyOf(lengths, extentCount * 2);
+                firstIndexes = Arrays.copyOf(firstIndexes, extentCount * 2);
+            }
+            starts[extentCount] = position;
+            lengths[extentCount] = 1;
+            firstIndexes[extentCount] = sectorCount;
+            extentCount++;
+        }
+        sectorCount++;
+    }
+
+    public int getExtentCount() {
+        return extentCount;
+    }
+
+    public int getSectorCount() {
+        return sectorCount;
+    }
+
+    public boolean isEmpty() {
+        return sectorCount == 0;
+    }
+
+    public int getStart(int extent) {
+        return starts[extent];
+    }
+
+    public int getLength(int extent) {
+        return lengths[extent];
+    }
+
+    public int getFirstIndex(int extent) {
+        return firstIndexes[extent];
+    }
+
+    public int findExtent(int index) {
+        if(index < 0 || index >= sectorCount) {
+            throw new IndexOutOfBoundsException("Index in chain: " + index + ", number of sectors: " + sectorCount);
+        }
+        int found = Arrays.binarySearch(firstIndexes, 0, extentCount, index);
+        return found >= 0 ? found : -found - 2;
+    }
+
+    public int getPosition(int index) {
+        int extent = findExtent(index);
+        return starts[extent] + index - firstIndexes[extent];
+    }
+
+    public int getLastPosition() {
+        return getPosition(sectorCount - 1);
+    }
+
+    public void forEachRun(int sectorSize, long fromIncl, long toExcl, RunConsumer consumer) {
+        if(fromIncl >= toExcl) {
+            return;
+        }
+        Verify.verify((toExcl - 1) / sectorSize < sectorCount, String.format("Cannot read beyond the end of the stream: end = %s", toExcl));
+        int maxSectorsInRun = Integer.MAX_VALUE / sectorSize;
+        for (int i = findExtent((int) (fromIncl / sectorSize)); i < extentCount && (long) firstIndexes[i] * sectorSize < toExcl; i++) {
+            long extentStart = (long) firstIndexes[i] * sectorSize;
+            long end = Math.min(toExcl, extentStart + (long) lengths[i] * sectorSize);
+            long start = Math.max(fromIncl, extentStart);
+            while(start < end) {
+                int sectorInExtent = (int) ((start - extentStart) / sectorSize);
+                long runEnd = Math.min(end, extentStart + (long) (sectorInExtent + maxSectorsInRun) * sectorSize);
+                consumer.accept(starts[i] + sectorInExtent, (int) ((start - extentStart) % sectorSize), start, (int) (runEnd - start));
+                start = runEnd;
+            }
+        }
+    }
+
+    public interface RunConsumer {
+        void accept(int firstSector, int offset, long positionInStream, int length);
+    }
+}
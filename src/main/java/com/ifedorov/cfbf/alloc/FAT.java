@@ -1,10 +1,13 @@
 package com.ifedorov.cfbf.alloc;
 
+import com.google.common.collect.Lists;
 import com.ifedorov.cfbf.Header;
-import com.ifedorov.cfbf.Sector;
 import com.ifedorov.cfbf.Sectors;
 import com.ifedorov.cfbf.Utils;
 
+import java.util.List;
+import java.util.function.IntConsumer;
+
 public class FAT extends AllocationTable {
 
     private final Header header;
@@ -14,21 +17,91 @@ public class FAT extends AllocationTable {
         super(sectors, difat.getFatSectorChain(), header.getSectorShift());
         this.header = header;
         this.difat = difat;
+        forEachFreeEntry(sectors.getNumberOfSectors(), sectors::markFree);
+    }
+
+    @Override
+    public void free(int position) {
+        super.free(position);
+        sectors.free(position);
     }
 
     public void registerDifatSector(Integer position) {
-        getFatSectorPointingToAllocatedSector(position).writeAt(calculatePositionInsideFatSector(position), Utils.DISECT_MARK);
+        setValueAt(position, Utils.DISECT_MARK_INT);
+    }
+
+    public boolean relocateModifiedSectors(List<Integer> chain, IntConsumer firstSectorLocation) {
+        boolean relocated = false;
+        for (int i = 0; i < chain.size(); i++) {
+            int position = chain.get(i);
+            if(sectors.requiresShadowCopy(position)) {
+                int relocatedPosition = sectors.relocate(position);
+                setValueAt(relocatedPosition, getValueAt(position));
+                free(position);
+                if(i == 0) {
+                    firstSectorLocation.accept(relocatedPosition);
+                } else {
+                    setValueAt(chain.get(i - 1), relocatedPosition);
+                }
+                chain.set(i, relocatedPosition);
+                relocated = true;
+            }
+        }
+        return relocated;
+    }
+
+    public boolean relocateModifiedSectors(int startingSector, IntConsumer firstSectorLocation) {
+        Extents extents = buildExtents(startingSector);
+        for (int i = 0; i < extents.getExtentCount(); i++) {
+            for (int position = extents.getStart(i); position < extents.getStart(i) + extents.getLength(i); position++) {
+                if(sectors.requiresShadowCopy(position)) {
+                    return relocateModifiedSectors(buildChain(startingSector), firstSectorLocation);
+                }
+            }
+        }
+        return false;
+    }
+
+    public boolean relocateModifiedFatSectors() {
+        boolean relocated = false;
+        boolean relocatedInPass;
+        do {
+            relocatedInPass = false;
+            for (int i = 0; i < sectorChain.size(); i++) {
+                int position = sectorChain.getPosition(i);
+                if(sectors.requiresShadowCopy(position)) {
+                    int relocatedPosition = sectors.relocate(position);
+                    difat.replaceFatSectorInDIFAT(i, relocatedPosition);
+                    setValueAt(relocatedPosition, Utils.FATSECT_MARK_INT);
+                    free(position);
+                    relocated = relocatedInPass = true;
+                }
+            }
+        } while(relocatedInPass);
+        return relocated;
+    }
+
+    public void relocateDifatSector(int position, int relocatedPosition) {
+        setValueAt(relocatedPosition, Utils.DISECT_MARK_INT);
+        free(position);
     }
 
     @Override
-    protected Sector allocateNewSector() {
-        Sector newSector = super.allocateNewSector();
-        Integer sectorPosition = newSector.getPosition();
-        Sector fatSectorPointingToAllocatedSector = getFatSectorPointingToAllocatedSector(sectorPosition);
-        int positionInsideFatSector = calculatePositionInsideFatSector(sectorPosition);
-        fatSectorPointingToAllocatedSector.writeAt(positionInsideFatSector, Utils.FATSECT_MARK);
-        difat.registerFatSectorInDIFAT(newSector.getPosition());
-        header.setNumberOfFatSectors(sectorChain.size());
-        return newSector;
+    protected void ensureCapacity(int sectorPosition) {
+        //New FAT sectors need entries of their own, so all of them are allocated and put into DIFAT before any is marked.
+        //DIFAT appends them to the sector chain shared with this table
+        List<Integer> allocated = Lists.newArrayList();
+        int lastPosition = sectorPosition;
+        while(sectorChain.size() <= lastPosition / entriesInOneFatSector) {
+            int position = sectors.allocate().getPosition();
+            difat.registerFatSectorInDIFAT(position);
+            allocated.add(position);
+            lastPosition = Math.max(lastPosition, position);
+        }
+        growEntries();
+        if(!allocated.isEmpty()) {
+            header.setNumberOfFatSectors(sectorChain.size());
+            allocated.forEach(position -> setValueAt(position, Utils.FATSECT_MARK_INT));
+        }
     }
 }
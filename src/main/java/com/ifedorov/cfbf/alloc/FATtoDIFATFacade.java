@@ -1,7 +1,5 @@
 package com.ifedorov.cfbf.alloc;
 
-import java.util.List;
-
 public class FATtoDIFATFacade {
 
     private DIFAT difat;
@@ -15,7 +13,7 @@ public class FATtoDIFATFacade {
         this.fat = fat;
     }
 
-    public List<Integer> getFatSectorChain() {
+    public SectorChain getFatSectorChain() {
         return difat.getFatSectorChain();
     }
 
@@ -26,4 +24,12 @@ public class FATtoDIFATFacade {
     public void registerDifatSectorInFAT(int sectorPosition) {
         fat.registerDifatSector(sectorPosition);
     }
+
+    public void replaceFatSectorInDIFAT(int index, int sectorPosition) {
+        difat.replaceFatSector(index, sectorPosition);
+    }
+
+    public void relocateDifatSectorInFAT(int sectorPosition, int relocatedPosition) {
+        fat.relocateDifatSector(sectorPosition, relocatedPosition);
+    }
 }
@@ -15,14 +15,18 @@ public class MiniFAT extends AllocationTable {
         this.fat = fat;
     }
 
+    public boolean relocateModifiedSectors() {
+        return fat.relocateModifiedSectors(sectorChain, header::setFirstMinifatSectorLocation);
+    }
+
     @Override
     protected Sector allocateNewSector() {
         Sector newSector = super.allocateNewSector();
-        Integer previousSectorPosition = sectorChain.size() == 1 ? null : sectorChain.get(sectorChain.size() - 2);
+        Integer previousSectorPosition = sectorChain.size() == 1 ? null : sectorChain.getPosition(sectorChain.size() - 2);
         fat.registerSector(newSector.getPosition(), previousSectorPosition);
         header.setNumberOfMiniFatSectors(sectorChain.size());
         if(sectorChain.size() == 1) {
-            header.setFirstMinifatSectorLocation(sectorChain.get(0));
+            header.setFirstMinifatSectorLocation(sectorChain.getPosition(0));
         }
         return newSector;
     }
@@ -0,0 +1,79 @@
+package com.ifedorov.cfbf.alloc;
+
+import com.google.common.base.Verify;
+
+import java.util.AbstractList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.RandomAccess;
+import java.util.function.IntConsumer;
+
+public class SectorChain extends AbstractList<Integer> implements RandomAccess {
+
+    private int[] positions;
+    private int size;
+
+    public SectorChain() {
+        this(8);
+    }
+
+    public SectorChain(int initialCapacity) {
+        this.positions = new int[Math.max(initialCapacity, 1)];
+    }
+
+    public static SectorChain of(Collection<Integer> positions) {
+        SectorChain chain = new SectorChain(positions.size());
+        positions.forEach(chain::addPosition);
+        return chain;
+    }
+
+    public int getPosition(int index) {
+        Verify.verify(index >= 0 && index < size, "No sector at index %s of chain with %s sectors", index, size);
+        return positions[index];
+    }
+
+    public void setPosition(int index, int position) {
+        Verify.verify(index >= 0 && index < size, "No sector at index %s of chain with %s sectors", index, size);
+        positions[index] = position;
+    }
+
+    public void addPosition(int position) {
+        if(size == positions.length) {
+            positions = Arrays.copyOf(positions, positions.length * 2);
+        }
+        positions[size++] = position;
+    }
+
+    public int getLastPosition() {
+        return getPosition(size - 1);
+    }
+
+    public void forEachPosition(IntConsumer consumer) {
+        for (int i = 0; i < size; i++) {
+            consumer.accept(positions[i]);
+        }
+    }
+
+    @Override
+    public Integer get(int index) {
+        return getPosition(index);
+    }
+
+    @Override
+    public Integer set(int index, Integer position) {
+        int previous = getPosition(index);
+        setPosition(index, position);
+        return previous;
+    }
+
+    @Override
+    public void add(int index, Integer position) {
+        Verify.verify(index == size, "Sectors can only be appended to the chain");
+        addPosition(position);
+    }
+
+    @Override
+    public int size() {
+        return size;
+    }
+}
@@ -1,16 +1,20 @@
 package com.ifedorov.cfbf.stream;
 
 import com.google.common.base.Verify;
-import com.google.common.collect.Iterables;
 import com.google.common.collect.Lists;
 import com.ifedorov.cfbf.*;
+import com.ifedorov.cfbf.alloc.AllocationPolicy;
+import com.ifedorov.cfbf.alloc.Extents;
 import com.ifedorov.cfbf.alloc.FAT;
 import com.ifedorov.cfbf.alloc.MiniFAT;
 import org.apache.commons.lang3.ArrayUtils;
 
-import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.WritableByteChannel;
+import java.util.Arrays;
+import java.util.BitSet;
 import java.util.List;
-import java.util.stream.Collectors;
+import java.util.concurrent.CompletableFuture;
 
 public class MiniStreamRW implements StreamRW {
 
@@ -19,99 +23,116 @@ public class MiniStreamRW implements StreamRW {
     private final Header header;
     private int miniStreamLength;
     private FAT fat;
-    private List<Integer> miniStreamSectorChain;
+    private Extents miniStreamSectorChain;
     private final Sectors sectors;
+    private final BitSet freeMiniSectors = new BitSet();
+    //Mini sectors freed since the last commit are still referenced by the committed file
+    private final BitSet releasedMiniSectors = new BitSet();
+    private AllocationPolicy allocationPolicy = AllocationPolicy.BEST_FIT;
 
     public MiniStreamRW(MiniFAT miniFAT, FAT fat, int firstMiniStreamSector, int miniStreamLength, Sectors sectors, Header header) {
         this.miniFAT = miniFAT;
         this.fat = fat;
         this.miniStreamLength = miniStreamLength;
         if(firstMiniStreamSector >= 0) {
-            this.miniStreamSectorChain = fat.buildChain(firstMiniStreamSector);
+            this.miniStreamSectorChain = Extents.copyOf(fat.buildExtents(firstMiniStreamSector));
         } else {
-            this.miniStreamSectorChain = Lists.newArrayList();
+            this.miniStreamSectorChain = new Extents();
         }
         this.sectors = sectors;
         this.header = header;
+        miniFAT.forEachFreeEntry(miniStreamLength / header.getMiniSectorShift(), freeMiniSectors::set);
     }
 
     @Override
     public byte[] read(int startingSector, int length) {
-        byte[] result = new byte[length];
-        int position = 0;
-        for (Integer sectorNumber : miniFAT.buildChain(startingSector)) {
-            if(length > 0) {
-                DataView data = getMiniSectorData(sectorNumber);
-                int bytesToRead = Math.min(data.getSize(), length);
-                System.arraycopy(data.subView(0, bytesToRead).getData(), 0, result, position, bytesToRead);
-                position += bytesToRead;
-                length -= bytesToRead;
-            } else {
-                break;
-            }
-        }
-        return result;
+        return read(startingSector, 0, length);
     }
 
     @Override
-    public byte[] read(int startingSector, int fromIncl, int toExcl) {
-        return new DataView.VariableSizeChunkedDataView(miniFAT.buildChain(startingSector).stream().map(this::getMiniSectorData).collect(Collectors.toList()))
-                .subView(fromIncl, toExcl).getData();
+    public byte[] read(int startingSector, long fromIncl, long toExcl) {
+        ByteBuffer result = ByteBuffer.allocate((int) (toExcl - fromIncl));
+        forEachRun(startingSector, fromIncl, toExcl,
+                (firstSector, offset, positionInStream, length) -> sectors.read(firstSector, offset, Utils.slice(result, (int) (positionInStream - fromIncl), length)));
+        return result.array();
+    }
+
+    @Override
+    public CompletableFuture<ByteBuffer> readAsync(int startingSector, long fromIncl, long toExcl) {
+        ByteBuffer result = ByteBuffer.allocate((int) (toExcl - fromIncl));
+        List<CompletableFuture<Void>> reads = Lists.newArrayList();
+        forEachRun(startingSector, fromIncl, toExcl,
+                (firstSector, offset, positionInStream, length) -> reads.add(sectors.readAsync(firstSector, offset, Utils.slice(result, (int) (positionInStream - fromIncl), length))));
+        return CompletableFuture.allOf(reads.toArray(new CompletableFuture<?>[0])).thenApply(ignored -> result);
+    }
+
+    private void forEachRun(int startingSector, long fromIncl, long toExcl, Extents.RunConsumer consumer) {
+        int miniSectorSize = header.getMiniSectorShift();
+        miniFAT.buildExtents(startingSector).forEachRun(miniSectorSize, fromIncl, toExcl, (firstMiniSector, miniOffset, positionInStream, length) -> {
+            int positionInMiniStream = firstMiniSector * miniSectorSize + miniOffset;
+            miniStreamSectorChain.forEachRun(header.getSectorShift(), positionInMiniStream, positionInMiniStream + length,
+                    (firstSector, offset, positionInMiniStreamRun, runLength) -> consumer.accept(firstSector, offset, positionInStream + positionInMiniStreamRun - positionInMiniStream, runLength));
+        });
     }
 
     private DataView getMiniSectorData(int position) {
         int sectorPosition = position * header.getMiniSectorShift() / header.getSectorShift();
         int shiftInsideSector = position * header.getMiniSectorShift() % header.getSectorShift();
-        return sectors.sector(miniStreamSectorChain.get(sectorPosition)).subView(shiftInsideSector, shiftInsideSector + header.getMiniSectorShift());
+        return sectors.sector(miniStreamSectorChain.getPosition(sectorPosition)).subView(shiftInsideSector, shiftInsideSector + header.getMiniSectorShift());
     }
 
     @Override
     public int write(byte[] data) {
         Verify.verify(data.length > 0);
-        int numberOfChunks = howManyChunksNeeded(data.length);
-        int firstMiniSectorPosition = Utils.ENDOFCHAIN_MARK_INT;
-        for (int i = 0; i < numberOfChunks; i++) {
-            int bytesFromPosition = i * header.getMiniSectorShift();
-            int bytesUpToPosition = Math.min((i + 1) * header.getMiniSectorShift(), data.length);
-            byte[] bytesToWrite = ArrayUtils.subarray(data, bytesFromPosition, bytesUpToPosition);
-            getDataHolderForNextChunk().writeAt(0, bytesToWrite);
-            int miniSectorPosition = miniStreamLength / header.getMiniSectorShift();
-            if(firstMiniSectorPosition == Utils.ENDOFCHAIN_MARK_INT) {
-                firstMiniSectorPosition = miniSectorPosition;
-            }
-            if(i == 0) {
-                miniFAT.registerSector(miniSectorPosition, null);
+        return writeChunks(data, 0, null);
+    }
+
+    private int writeChunks(byte[] data, int fromIncl, Integer previousMiniSectorPosition) {
+        int miniSectorSize = header.getMiniSectorShift();
+        int[] chain = allocateMiniSectors((data.length - fromIncl + miniSectorSize - 1) / miniSectorSize);
+        for (int i = 0; i < chain.length; i++) {
+            int chunkStart = fromIncl + i * miniSectorSize;
+            byte[] bytesToWrite = ArrayUtils.subarray(data, chunkStart, Math.min(chunkStart + miniSectorSize, data.length));
+            if(chain[i] < miniStreamLength / miniSectorSize) {
+                getMiniSectorData(chain[i]).writeAt(0, Arrays.copyOf(bytesToWrite, miniSectorSize));
             } else {
-                miniFAT.registerSector(miniSectorPosition, miniSectorPosition - 1);
+                Verify.verify(chain[i] == miniStreamLength / miniSectorSize, "Allocation policy chose mini sector out of order: %s", chain[i]);
+                getDataHolderForNextChunk().writeAt(0, bytesToWrite);
+                miniStreamLength += miniSectorSize;
             }
-            miniStreamLength += header.getMiniSectorShift();
         }
-        return firstMiniSectorPosition;
+        miniFAT.registerChain(chain, previousMiniSectorPosition);
+        return chain.length == 0 ? Utils.ENDOFCHAIN_MARK_INT : chain[0];
     }
 
-    private int howManyChunksNeeded(int dataLength) {
-        int numberOfChunks = -1;
-        if(dataLength % header.getMiniSectorShift() == 0) {
-            numberOfChunks = dataLength / header.getMiniSectorShift();
-        } else {
-            numberOfChunks = dataLength / header.getMiniSectorShift() + 1;
+    private int[] allocateMiniSectors(int count) {
+        int numberOfMiniSectors = miniStreamLength / header.getMiniSectorShift();
+        int[] allocated = allocationPolicy.allocate(freeMiniSectors, numberOfMiniSectors, count);
+        for (int position : allocated) {
+            Verify.verify(position >= numberOfMiniSectors || freeMiniSectors.get(position), "Allocation policy chose mini sector in use: %s", position);
+            freeMiniSectors.clear(position);
         }
-        return numberOfChunks;
+        return allocated;
+    }
+
+    public void setAllocationPolicy(AllocationPolicy allocationPolicy) {
+        this.allocationPolicy = allocationPolicy;
     }
 
     @Override
-    public void writeAt(int startingSector, int position, byte[] data) {
-        new DataView.VariableSizeChunkedDataView(miniFAT.buildChain(startingSector).stream().map(this::getMiniSectorData).collect(Collectors.toList()))
-                .writeAt(position, data);
+    public void writeAt(int startingSector, long position, byte[] data) {
+        forEachRun(startingSector, position, position + data.length,
+                (firstSector, offset, positionInStream, length) -> sectors.write(firstSector, offset, ByteBuffer.wrap(data, (int) (positionInStream - position), length)));
     }
 
     @Override
-    public int append(int startingSector, int currentSize, byte[] data) {
-        List<Integer> sectorChain = miniFAT.buildChain(startingSector);
+    public int append(int startingSector, long size, byte[] data) {
+        int currentSize = (int) size;
+        Extents sectorChain = miniFAT.buildExtents(startingSector);
         if(sectorChain.isEmpty()) {
             return write(data);
         }
-        Integer lastSectorPosition = Iterables.getLast(sectorChain);
+        Integer lastSectorPosition = sectorChain.getLastPosition();
         DataView lastSector = getMiniSectorData(lastSectorPosition);
         int freeBytesInLastSector = 0;
         int remainingBytes = data.length;
@@ -127,27 +148,73 @@ public class MiniStreamRW implements StreamRW {
         if(freeBytesInLastSector > 0 || remainingBytes == 0) {
             return startingSector;
         }
-        int numberOfChunks = howManyChunksNeeded(remainingBytes);
-        for (int i = 0; i < numberOfChunks; i++) {
-            int bytesFromPosition = i * header.getMiniSectorShift();
-            int bytesUpToPosition = Math.min((i + 1) * header.getMiniSectorShift(), data.length);
-            byte[] bytesToWrite = ArrayUtils.subarray(data, bytesFromPosition, bytesUpToPosition);
-            getDataHolderForNextChunk().writeAt(0, bytesToWrite);
-            int miniSectorPosition = miniStreamLength / header.getMiniSectorShift();
-            if(i == 0) {
-                miniFAT.registerSector(miniSectorPosition, lastSectorPosition);
+        writeChunks(data, data.length - remainingBytes, lastSectorPosition);
+        return startingSector;
+    }
+
+    @Override
+    public void truncate(int startingSector, long size) {
+        release(miniFAT.truncateChain(startingSector, (int) ((size + header.getMiniSectorShift() - 1) / header.getMiniSectorShift())));
+    }
+
+    @Override
+    public void free(int startingSector) {
+        release(miniFAT.freeChain(startingSector));
+    }
+
+    private void release(List<Integer> miniSectors) {
+        int miniSectorsInOneSector = header.getSectorShift() / header.getMiniSectorShift();
+        for (Integer position : miniSectors) {
+            if(sectors.isCommitted(miniStreamSectorChain.getPosition(position / miniSectorsInOneSector))) {
+                releasedMiniSectors.set(position);
             } else {
-                miniFAT.registerSector(miniSectorPosition, miniSectorPosition - 1);
+                freeMiniSectors.set(position);
             }
-            miniStreamLength += header.getMiniSectorShift();
         }
-        return startingSector;
+        truncateFreeTail();
+    }
+
+    public boolean relocateModifiedSectors() {
+        if(miniStreamSectorChain.isEmpty()) {
+            return false;
+        }
+        int firstSector = miniStreamSectorChain.getPosition(0);
+        int[] relocatedFirstSector = {firstSector};
+        boolean relocated = fat.relocateModifiedSectors(firstSector, position -> relocatedFirstSector[0] = position);
+        if(relocated) {
+            miniStreamSectorChain = Extents.copyOf(fat.buildExtents(relocatedFirstSector[0]));
+        }
+        return relocated;
+    }
+
+    public void commit() {
+        freeMiniSectors.or(releasedMiniSectors);
+        releasedMiniSectors.clear();
+        truncateFreeTail();
+    }
+
+    private void truncateFreeTail() {
+        int miniSectorCount = miniStreamLength / header.getMiniSectorShift();
+        int newMiniSectorCount = freeMiniSectors.previousClearBit(miniSectorCount - 1) + 1;
+        if(newMiniSectorCount == miniSectorCount) {
+            return;
+        }
+        freeMiniSectors.clear(newMiniSectorCount, miniSectorCount);
+        miniStreamLength = newMiniSectorCount * header.getMiniSectorShift();
+        int firstSector = miniStreamSectorChain.getPosition(0);
+        if(miniStreamLength == 0) {
+            fat.freeChain(firstSector);
+            miniStreamSectorChain = new Extents();
+        } else {
+            fat.truncateChain(firstSector, (miniStreamLength + header.getSectorShift() - 1) / header.getSectorShift());
+            miniStreamSectorChain = Extents.copyOf(fat.buildExtents(firstSector));
+        }
     }
 
     @Override
-    public void copyTo(int startingLocation, OutputStream os) {
-        new DataView.VariableSizeChunkedDataView(miniFAT.buildChain(startingLocation).stream().map(this::getMiniSectorData).collect(Collectors.toList()))
-                .copyTo(os);
+    public void copyTo(int startingLocation, long length, WritableByteChannel channel) {
+        forEachRun(startingLocation, 0, length,
+                (firstSector, offset, positionInStream, runLength) -> sectors.transferTo(firstSector, offset, runLength, channel));
     }
 
     private DataView getDataHolderForNextChunk() {
@@ -164,11 +231,11 @@ public class MiniStreamRW implements StreamRW {
             return sector;
         } else if(miniStreamLength % header.getSectorShift() == 0) {
             Sector sector = sectors.allocate();
-            fat.registerSector(sector.getPosition(), sectors.sector(miniStreamSectorChain.get(miniStreamSectorChain.size() - 1)).getPosition());
+            fat.registerSector(sector.getPosition(), miniStreamSectorChain.getLastPosition());
             miniStreamSectorChain.add(sector.getPosition());
             return sector;
         } else {
-            return sectors.sector(miniStreamSectorChain.get(miniStreamSectorChain.size() - 1));
+            return sectors.sector(miniStreamSectorChain.getLastPosition());
         }
     }
 
@@ -177,6 +244,6 @@ public class MiniStreamRW implements StreamRW {
     }
 
     public int getMiniStreamFirstSectorPosition() {
-        return miniStreamLength <= 0 ? Utils.toInt(Utils.FREESECT_MARK_OR_NOSTREAM) : miniStreamSectorChain.get(0);
+        return miniStreamLength <= 0 ? Utils.toInt(Utils.FREESECT_MARK_OR_NOSTREAM) : miniStreamSectorChain.getPosition(0);
     }
 }
@@ -1,16 +1,20 @@
 package com.ifedorov.cfbf.stream;
 
-import com.google.common.collect.Iterables;
-import com.ifedorov.cfbf.DataView;
+import com.google.common.base.Verify;
+import com.google.common.collect.Lists;
 import com.ifedorov.cfbf.Header;
 import com.ifedorov.cfbf.Sectors;
+import com.ifedorov.cfbf.Utils;
+import com.ifedorov.cfbf.alloc.Extents;
 import com.ifedorov.cfbf.alloc.FAT;
 import com.ifedorov.cfbf.Sector;
 import org.apache.commons.lang3.ArrayUtils;
 
-import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.WritableByteChannel;
 import java.util.List;
-import java.util.stream.Collectors;
+import java.util.concurrent.CompletableFuture;
+import java.util.function.IntConsumer;
 
 public class RegularStreamRW implements StreamRW {
 
@@ -26,100 +30,105 @@ public class RegularStreamRW implements StreamRW {
 
     @Override
     public byte[] read(int startingSector, int length) {
-        byte[] result = new byte[length];
-        int positionInResult = 0;
-        for (Integer sectorPosition : fat.buildChain(startingSector)) {
-            if(length > 0) {
-                Sector sector = sectors.sector(sectorPosition);
-                int bytesToRead = Math.min(sector.getSize(), length);
-                System.arraycopy(sector.subView(0, bytesToRead).getData(), 0, result, positionInResult, bytesToRead);
-                positionInResult += bytesToRead;
-                length -= bytesToRead;
-            } else {
-                break;
-            }
-        }
-        return result;
+        return read(startingSector, 0, length);
+    }
+
+    @Override
+    public byte[] read(int startingSector, long fromIncl, long toExcl) {
+        ByteBuffer result = allocate(fromIncl, toExcl);
+        fat.buildExtents(startingSector).forEachRun(header.getSectorShift(), fromIncl, toExcl,
+                (firstSector, offset, positionInStream, length) -> sectors.read(firstSector, offset, Utils.slice(result, (int) (positionInStream - fromIncl), length)));
+        return result.array();
     }
 
     @Override
-    public byte[] read(int startingSector, int fromIncl, int toExcl) {
-        return new DataView.VariableSizeChunkedDataView(fat.buildChain(startingSector).stream().map(sectors::sector).collect(Collectors.toList()))
-                .subView(fromIncl, toExcl).getData();
+    public CompletableFuture<ByteBuffer> readAsync(int startingSector, long fromIncl, long toExcl) {
+        ByteBuffer result = allocate(fromIncl, toExcl);
+        List<CompletableFuture<Void>> reads = Lists.newArrayList();
+        fat.buildExtents(startingSector).forEachRun(header.getSectorShift(), fromIncl, toExcl,
+                (firstSector, offset, positionInStream, length) -> reads.add(sectors.readAsync(firstSector, offset, Utils.slice(result, (int) (positionInStream - fromIncl), length))));
+        return CompletableFuture.allOf(reads.toArray(new CompletableFuture<?>[0])).thenApply(ignored -> result);
     }
 
     @Override
     public int write(byte[] data) {
-        Integer firstSectorPosition = null;
-        Integer previousSectorPosition = null;
-        for (int i = 0; i < data.length; i+=header.getSectorShift()) {
-            Sector sector = sectors.allocate();
-            int writeBytes = Math.min(header.getSectorShift(), data.length - i);
-            sector.writeAt(0, ArrayUtils.subarray(data, i, i + writeBytes));
-            int sectorPosition = sector.getPosition();
-            fat.registerSector(sectorPosition, previousSectorPosition);
-            if(firstSectorPosition == null) {
-                firstSectorPosition = sectorPosition;
-            }
-            previousSectorPosition = sectorPosition;
-        }
-        return firstSectorPosition;
+        List<Sector> allocated = sectors.allocate(howManySectorsNeeded(data.length));
+        writeChain(allocated, data, 0, null);
+        return allocated.isEmpty() ? Utils.ENDOFCHAIN_MARK_INT : allocated.get(0).getPosition();
     }
 
     @Override
-    public void writeAt(int startingSector, int position, byte[] data) {
-        new DataView.VariableSizeChunkedDataView(fat.buildChain(startingSector).stream().map(sectors::sector).collect(Collectors.toList()))
-                .writeAt(position, data);
+    public void writeAt(int startingSector, long position, byte[] data) {
+        fat.buildExtents(startingSector).forEachRun(header.getSectorShift(), position, position + data.length,
+                (firstSector, offset, positionInStream, length) -> sectors.write(firstSector, offset, ByteBuffer.wrap(data, (int) (positionInStream - position), length)));
     }
 
     @Override
-    public int append(int startingSector, int currentSize, byte[] data) {
-        List<Integer> sectorChain = fat.buildChain(startingSector);
+    public int append(int startingSector, long currentSize, byte[] data) {
+        Extents sectorChain = fat.buildExtents(startingSector);
         if(sectorChain.isEmpty()) {
             return write(data);
         }
-        Integer lastSectorPosition = Iterables.getLast(sectorChain);
-        DataView lastSector = sectors.sector(lastSectorPosition);
-        int freeBytesInLastSector = 0;
-        int remainingBytes = data.length;
-        if(currentSize % header.getSectorShift() != 0) {
-            freeBytesInLastSector = lastSector.getSize() - currentSize % header.getSectorShift();
-            if(freeBytesInLastSector > 0) {
-                int byteToWrite = Math.min(freeBytesInLastSector, data.length);
-                lastSector.writeAt(lastSector.getSize() - freeBytesInLastSector, ArrayUtils.subarray(data, 0, byteToWrite));
-                freeBytesInLastSector -= byteToWrite;
-                remainingBytes -= byteToWrite;
-            }
+        //Sectors beyond the current size may already be reserved for the stream
+        int writtenBytes = (int) Math.min((long) sectorChain.getSectorCount() * header.getSectorShift() - currentSize, data.length);
+        if(writtenBytes > 0) {
+            sectorChain.forEachRun(header.getSectorShift(), currentSize, currentSize + writtenBytes,
+                    (firstSector, offset, positionInStream, length) -> sectors.write(firstSector, offset, ByteBuffer.wrap(data, (int) (positionInStream - currentSize), length)));
         }
-        if(freeBytesInLastSector > 0 || remainingBytes == 0) {
+        writeChain(sectors.allocate(howManySectorsNeeded(data.length - writtenBytes)), data, writtenBytes, sectorChain.getLastPosition());
+        return startingSector;
+    }
+
+    public int reserve(int startingSector, long capacity) {
+        Extents sectorChain = fat.buildExtents(startingSector);
+        long missingSectors = howManySectorsNeeded(capacity) - sectorChain.getSectorCount();
+        if(missingSectors <= 0) {
             return startingSector;
         }
-        int numberOfChunks = howManyChunksNeeded(remainingBytes);
-        Integer previousSectorPosition = lastSectorPosition;
-        for (int i = 0; i < numberOfChunks; i+=header.getSectorShift()) {
-            Sector sector = this.sectors.allocate();
-            int writeBytes = Math.min(header.getSectorShift(), data.length - i);
-            sector.writeAt(0, ArrayUtils.subarray(data, i, i + writeBytes));
-            int sectorPosition = sector.getPosition();
-            fat.registerSector(sectorPosition, previousSectorPosition);
-            previousSectorPosition = sectorPosition;
+        List<Sector> allocated = sectors.allocate((int) missingSectors);
+        fat.registerChain(positions(allocated), sectorChain.isEmpty() ? null : sectorChain.getLastPosition());
+        return sectorChain.isEmpty() ? allocated.get(0).getPosition() : startingSector;
+    }
+
+    private void writeChain(List<Sector> allocated, byte[] data, int fromIncl, Integer previousSectorPosition) {
+        for (Sector sector : allocated) {
+            int writeBytes = Math.min(header.getSectorShift(), data.length - fromIncl);
+            sector.writeAt(0, ArrayUtils.subarray(data, fromIncl, fromIncl + writeBytes));
+            fromIncl += writeBytes;
         }
-        return startingSector;
+        fat.registerChain(positions(allocated), previousSectorPosition);
+    }
+
+    private static int[] positions(List<Sector> allocated) {
+        return allocated.stream().mapToInt(Sector::getPosition).toArray();
+    }
+
+    private int howManySectorsNeeded(long length) {
+        return (int) ((length + header.getSectorShift() - 1) / header.getSectorShift());
+    }
+
+    public boolean relocateModifiedSectors(int startingSector, IntConsumer firstSectorLocation) {
+        return fat.relocateModifiedSectors(startingSector, firstSectorLocation);
     }
 
     @Override
-    public void copyTo(int startingSector, OutputStream os) {
-        new DataView.VariableSizeChunkedDataView(fat.buildChain(startingSector).stream().map(sectors::sector).collect(Collectors.toList()))
-                .copyTo(os);
+    public void truncate(int startingSector, long size) {
+        fat.truncateChain(startingSector, (int) ((size + header.getSectorShift() - 1) / header.getSectorShift()));
     }
 
-    private int howManyChunksNeeded(int dataLength) {
-        int numberOfChunks = -1;
-        if(dataLength % header.getSectorShift() == 0) {
-            numberOfChunks = dataLength / header.getSectorShift();
-        } else {
-            numberOfChunks = dataLength / header.getSectorShift() + 1;
-        }
-        return numberOfChunks;
+    @Override
+    public void free(int startingSector) {
+        fat.freeChain(startingSector);
+    }
+
+    @Override
+    public void copyTo(int startingSector, long length, WritableByteChannel channel) {
+        fat.buildExtents(startingSector).forEachRun(header.getSectorShift(), 0, length,
+                (firstSector, offset, positionInStream, runLength) -> sectors.transferTo(firstSector, offset, runLength, channel));
+    }
+
+    private static ByteBuffer allocate(long fromIncl, long toExcl) {
+        Verify.verify(toExcl - fromIncl <= Integer.MAX_VALUE, String.format("Range is too large to be read into a single buffer: start = %s, end = %s", fromIncl, toExcl));
+        return ByteBuffer.allocate((int) (toExcl - fromIncl));
     }
 }
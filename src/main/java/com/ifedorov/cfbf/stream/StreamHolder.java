@@ -1,23 +1,32 @@
 package com.ifedorov.cfbf.stream;
 
 import com.google.common.base.Verify;
+import com.google.common.collect.Sets;
+import com.ifedorov.cfbf.Utils;
 import org.apache.commons.lang3.ArrayUtils;
 
-import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.WritableByteChannel;
+import java.util.Arrays;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.function.IntConsumer;
 
 public class StreamHolder {
 
-    private final StreamRW regularStreamRW;
+    private final RegularStreamRW regularStreamRW;
     private final StreamRW miniStreamRW;
     private final int sizeThreshold;
+    //Starting sectors of regular chains reserved for streams that are still below the cutoff
+    private final Set<Integer> reservedChains = Sets.newHashSet();
 
-    public StreamHolder(StreamRW regularStreamRW, StreamRW miniStreamRW, int sizeThreshold) {
+    public StreamHolder(RegularStreamRW regularStreamRW, StreamRW miniStreamRW, int sizeThreshold) {
         this.regularStreamRW = regularStreamRW;
         this.miniStreamRW = miniStreamRW;
         this.sizeThreshold = sizeThreshold;
     }
 
-    private StreamRW forSize(int size) {
+    private StreamRW forSize(long size) {
         if(size >= sizeThreshold) {
             return regularStreamRW;
         } else {
@@ -25,30 +34,105 @@ public class StreamHolder {
         }
     }
 
+    private StreamRW forStream(int startingLocation, long size) {
+        return reservedChains.contains(startingLocation) ? regularStreamRW : forSize(size);
+    }
+
+    public byte[] getStreamData(int startingLocation, long size) {
+        Verify.verify(size <= Integer.MAX_VALUE, "Stream is too large to be read into a single array: " + size);
+        return forStream(startingLocation, size).read(startingLocation, (int) size);
+    }
+
+    public void copyTo(int startingLocation, long size, WritableByteChannel channel) {
+        forStream(startingLocation, size).copyTo(startingLocation, size, channel);
+    }
+
+    public void free(int startingLocation, long size) {
+        if(reservedChains.remove(startingLocation)) {
+            regularStreamRW.free(startingLocation);
+        } else if(size > 0 && !Utils.isEndOfChain(startingLocation)) {
+            forSize(size).free(startingLocation);
+        }
+    }
 
-    public byte[] getStreamData(int startingLocation, int size) {
-        return forSize(size).read(startingLocation, size);
+    public int reserve(int startingLocation, long size, long capacity) {
+        if(capacity < sizeThreshold || capacity <= size) {
+            return startingLocation;
+        }
+        if(forStream(startingLocation, size) == regularStreamRW) {
+            return regularStreamRW.reserve(startingLocation, capacity);
+        }
+        int reservedLocation = regularStreamRW.reserve(Utils.ENDOFCHAIN_MARK_INT, capacity);
+        if(size > 0) {
+            regularStreamRW.writeAt(reservedLocation, 0, miniStreamRW.read(startingLocation, (int) size));
+            free(startingLocation, size);
+        }
+        reservedChains.add(reservedLocation);
+        return reservedLocation;
     }
 
-    public void copyTo(int startingLocation, int size, OutputStream os) {
-        forSize(size).copyTo(startingLocation, os);
+    public boolean relocateModifiedSectors(int startingLocation, long size, IntConsumer firstSectorLocation) {
+        if(size > 0 && forStream(startingLocation, size) == regularStreamRW) {
+            return regularStreamRW.relocateModifiedSectors(startingLocation, firstSectorLocation);
+        }
+        return false;
+    }
+
+    public void verifyReservationsFilled() {
+        if(!reservedChains.isEmpty()) {
+            throw new IllegalStateException("Streams with reserved sectors should be filled up to " + sizeThreshold + " bytes before they are saved");
+        }
     }
 
     public int setStreamData(byte[] data) {
         return forSize(data.length).write(data);
     }
 
-    public byte[] read(int startingLocation, int size, int fromIncl, int toExcl) {
-        return forSize(size).read(startingLocation, fromIncl, toExcl);
+    public int setStreamData(int startingLocation, long size, byte[] data) {
+        if(data.length == 0) {
+            free(startingLocation, size);
+            return Utils.ENDOFCHAIN_MARK_INT;
+        }
+        boolean reserved = reservedChains.contains(startingLocation);
+        StreamRW streamRW = forStream(startingLocation, size);
+        if((size == 0 && !reserved) || Utils.isEndOfChain(startingLocation) || streamRW != forSize(data.length)) {
+            free(startingLocation, size);
+            return setStreamData(data);
+        }
+        //Data at or above the cutoff fills the reservation, so the chain is an ordinary regular stream from now on
+        reservedChains.remove(startingLocation);
+        if(data.length <= size) {
+            streamRW.truncate(startingLocation, data.length);
+            streamRW.writeAt(startingLocation, 0, data);
+        } else {
+            streamRW.writeAt(startingLocation, 0, Arrays.copyOf(data, (int) size));
+            streamRW.append(startingLocation, size, Arrays.copyOfRange(data, (int) size, data.length));
+        }
+        return startingLocation;
+    }
+
+    public byte[] read(int startingLocation, long size, long fromIncl, long toExcl) {
+        return forStream(startingLocation, size).read(startingLocation, fromIncl, toExcl);
+    }
+
+    public CompletableFuture<ByteBuffer> readAsync(int startingLocation, long size, long fromIncl, long toExcl) {
+        return forStream(startingLocation, size).readAsync(startingLocation, fromIncl, toExcl);
     }
 
-    public void writeAt(int startingLocation, int size, int position, byte[] data) {
-        forSize(size).writeAt(startingLocation, position, data);
+    public void writeAt(int startingLocation, long size, long position, byte[] data) {
+        forStream(startingLocation, size).writeAt(startingLocation, position, data);
     }
 
-    public int append(int startingLocation, int size, byte[] data) {
-        if(size < sizeThreshold && size + data.length >= sizeThreshold) {
-            return forSize(size + data.length).write(ArrayUtils.addAll(forSize(size).read(startingLocation, size), data));
+    public int append(int startingLocation, long size, byte[] data) {
+        if(reservedChains.contains(startingLocation)) {
+            if(size + data.length >= sizeThreshold) {
+                reservedChains.remove(startingLocation);
+            }
+            return regularStreamRW.append(startingLocation, size, data);
+        } else if(size < sizeThreshold && size + data.length >= sizeThreshold) {
+            int promotedLocation = forSize(size + data.length).write(ArrayUtils.addAll(forSize(size).read(startingLocation, (int) size), data));
+            free(startingLocation, size);
+            return promotedLocation;
         } else {
             return forSize(size).append(startingLocation, size, data);
         }
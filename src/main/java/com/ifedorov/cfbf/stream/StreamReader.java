@@ -1,7 +1,11 @@
 package com.ifedorov.cfbf.stream;
 
+import java.nio.ByteBuffer;
+import java.util.concurrent.CompletableFuture;
+
 public interface StreamReader {
 
     byte[] read(int startingSector, int length);
-    byte[] read(int startingSector, int fromIncl, int toExcl);
+    byte[] read(int startingSector, long fromIncl, long toExcl);
+    CompletableFuture<ByteBuffer> readAsync(int startingSector, long fromIncl, long toExcl);
 }
@@ -1,11 +1,13 @@
 package com.ifedorov.cfbf.stream;
 
-import java.io.OutputStream;
+import java.nio.channels.WritableByteChannel;
 
 public interface StreamWriter {
     int write(byte[] data);
-    void writeAt(int startingSector, int position, byte[] data);
-    int append(int startingSector, int currentSize, byte[] data);
+    void writeAt(int startingSector, long position, byte[] data);
+    int append(int startingSector, long currentSize, byte[] data);
+    void truncate(int startingSector, long size);
+    void free(int startingSector);
 
-    void copyTo(int startingLocation, OutputStream os);
+    void copyTo(int startingLocation, long length, WritableByteChannel channel);
 }
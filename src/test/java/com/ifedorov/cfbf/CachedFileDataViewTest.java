@@ -0,0 +1,146 @@
+package com.ifedorov.cfbf;
+
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+
+import static com.ifedorov.cfbf.Header.HEADER_LENGTH;
+import static org.junit.jupiter.api.Assertions.*;
+
+class CachedFileDataViewTest {
+
+    @TempDir Path tempDir;
+
+    private Path createFile(int chunks) throws IOException {
+        byte[] data = new byte[HEADER_LENGTH * chunks];
+        for (int i = 0; i < chunks; i++) {
+            System.arraycopy(Utils.initializedWith(HEADER_LENGTH, i), 0, data, i * HEADER_LENGTH, HEADER_LENGTH);
+        }
+        return Files.write(tempDir.resolve("chunks.bin"), data);
+    }
+
+    @Test
+    void testLeastRecentlyUsedChunksAreEvicted() throws IOException {
+        try(CachedFileDataView dataView = CachedFileDataView.open(createFile(5), 2 * HEADER_LENGTH)) {
+            assertArrayEquals(Utils.initializedWith(HEADER_LENGTH, 1), dataView.chunk(1).getData());
+            assertArrayEquals(Utils.initializedWith(HEADER_LENGTH, 2), dataView.chunk(2).getData());
+            assertArrayEquals(Utils.initializedWith(HEADER_LENGTH, 3), dataView.chunk(3).getData());
+            assertEquals(3, dataView.getCacheMisses());
+            assertEquals(2 * HEADER_LENGTH, dataView.getCachedBytes());
+            assertArrayEquals(Utils.initializedWith(HEADER_LENGTH, 3), dataView.chunk(3).getData());
+            assertEquals(1, dataView.getCacheHits());
+            assertArrayEquals(Utils.initializedWith(HEADER_LENGTH, 1), dataView.chunk(1).getData());
+            assertEquals(4, dataView.getCacheMisses());
+        }
+    }
+
+    @Test
+    void testPinnedChunksAreNeverEvicted() throws IOException {
+        try(CachedFileDataView dataView = CachedFileDataView.open(createFile(5), HEADER_LENGTH)) {
+            dataView.pin(4);
+            dataView.chunk(0).getData();
+            dataView.chunk(4).getData();
+            for (int i = 1; i < 4; i++) {
+                dataView.chunk(i).getData();
+            }
+            long misses = dataView.getCacheMisses();
+            dataView.chunk(0).getData();
+            dataView.chunk(4).getData();
+            assertEquals(misses, dataView.getCacheMisses());
+            assertEquals(2 * HEADER_LENGTH, dataView.getPinnedBytes());
+            assertEquals(HEADER_LENGTH, dataView.getCachedBytes());
+        }
+    }
+
+    @Test
+    void testModifiedChunksSurviveEviction() throws IOException {
+        Path file = createFile(5);
+        byte[] original = Files.readAllBytes(file);
+        try(CachedFileDataView dataView = CachedFileDataView.open(file, 0)) {
+            dataView.chunk(2).subView(10, 12).writeAt(0, new byte[]{9, 9});
+            for (int i = 0; i < 5; i++) {
+                dataView.chunk(i).getData();
+            }
+            assertArrayEquals(new byte[]{2, 9, 9, 2}, dataView.chunk(2).subView(9, 13).getData());
+            DataView allocated = dataView.allocate(HEADER_LENGTH);
+            assertEquals(6, dataView.getChunkCount());
+            assertSame(allocated, dataView.chunk(5));
+        }
+        assertArrayEquals(original, Files.readAllBytes(file));
+    }
+
+    @Test
+    void testOpenCompoundFile() {
+        byte[] regular = new byte[20000];
+        for (int i = 0; i < regular.length; i++) {
+            regular[i] = (byte) (i % 127);
+        }
+        CompoundFile compoundFile = new CompoundFile();
+        compoundFile.getRootStorage().addStream("regular", regular);
+        compoundFile.getRootStorage().addStream("mini", new byte[]{1, 2, 3});
+        Path file = tempDir.resolve("compound.cfb");
+        compoundFile.saveTo(file.toFile());
+
+        try(CompoundFile cached = CompoundFile.openCached(file, 4 * HEADER_LENGTH)) {
+            StreamDirectoryEntry cachedRegular = cached.getRootStorage().findChild(entry -> "regular".equals(entry.getDirectoryEntryName()));
+            StreamDirectoryEntry cachedMini = cached.getRootStorage().findChild(entry -> "mini".equals(entry.getDirectoryEntryName()));
+            assertArrayEquals(regular, cachedRegular.getStreamData());
+            assertArrayEquals(new byte[]{1, 2, 3}, cachedMini.getStreamData());
+            assertArrayEquals(regular, cachedRegular.getStreamData());
+            assertArrayEquals(regular, cachedRegular.getStreamDataAsync().join().array());
+            assertArrayEquals(new byte[]{2, 3}, cachedMini.readAsync(1, 3).join().array());
+        }
+    }
+
+    @Test
+    void testCommittedChunksBecomeEvictable() throws IOException {
+        Path file = createFile(5);
+        try(CachedFileDataView dataView = CachedFileDataView.open(file, HEADER_LENGTH)) {
+            dataView.chunk(2).writeAt(0, new byte[]{9});
+            dataView.chunk(3).writeAt(0, new byte[]{9});
+            assertEquals(2 * HEADER_LENGTH, dataView.getPinnedBytes());
+            dataView.commit();
+            assertEquals(0, dataView.getDirtyChunkCount());
+            assertEquals(0, dataView.getPinnedBytes());
+            assertEquals(HEADER_LENGTH, dataView.getCachedBytes());
+        }
+        byte[] committed = Files.readAllBytes(file);
+        assertEquals(9, committed[2 * HEADER_LENGTH]);
+        assertEquals(9, committed[3 * HEADER_LENGTH]);
+        assertEquals(2, committed[2 * HEADER_LENGTH + 1]);
+    }
+
+    @Test
+    void testSwappedOutChunksAreUnpinned() throws IOException {
+        Path file = createFile(5);
+        try(CachedFileDataView dataView = CachedFileDataView.open(file, 0)) {
+            dataView.pin(4);
+            dataView.swap(4, 2);
+            dataView.commit();
+            assertEquals(HEADER_LENGTH, dataView.getPinnedBytes());
+            assertArrayEquals(Utils.initializedWith(HEADER_LENGTH, 4), dataView.chunk(2).getData());
+            dataView.allocate(HEADER_LENGTH);
+            dataView.swap(2, 5);
+            dataView.commit();
+            assertEquals(0, dataView.getPinnedBytes());
+            assertArrayEquals(Utils.initializedWith(HEADER_LENGTH, 4), dataView.chunk(5).getData());
+        }
+    }
+
+    @Test
+    void testHeldViewsFollowSwappedChunks() throws IOException {
+        try(CachedFileDataView dataView = CachedFileDataView.open(createFile(5), 0)) {
+            dataView.reclaim(2);
+            DataView held = dataView.chunk(2).subView(0, 4);
+            held.writeAt(0, new byte[]{9});
+            dataView.swap(2, 4);
+            held.writeAt(1, new byte[]{8});
+            assertArrayEquals(new byte[]{9, 8, 2, 2}, dataView.chunk(4).readAt(0, 4));
+            assertArrayEquals(Utils.initializedWith(HEADER_LENGTH, 4), dataView.chunk(2).getData());
+            dataView.commit();
+        }
+    }
+}
@@ -0,0 +1,87 @@
+package com.ifedorov.cfbf;
+
+import com.google.common.base.Strings;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.io.ByteArrayInputStream;
+import java.nio.file.Path;
+import java.util.Optional;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class CompoundFileBuilderTest {
+
+    @TempDir
+    Path tempDir;
+
+    @Test
+    void testBuildHierarchy() {
+        byte[] regular = new byte[10000];
+        for (int i = 0; i < regular.length; i++) {
+            regular[i] = (byte) i;
+        }
+        CompoundFile compoundFile = new CompoundFileBuilder()
+                .stream("mini", new byte[]{1, 2, 3})
+                .stream("storage/regular", regular)
+                .stream("storage/nested/supplied", 5, () -> new ByteArrayInputStream(new byte[]{5, 6, 7, 8, 9}))
+                .storage("empty/storage")
+                .stream("storage/empty", new byte[0])
+                .build();
+        RootStorageDirectoryEntry root = compoundFile.getRootStorage();
+        assertArrayEquals(new byte[]{1, 2, 3}, root.<StreamDirectoryEntry>findChild(entry -> "mini".equals(entry.getDirectoryEntryName())).getStreamData());
+        StorageDirectoryEntry storage = root.findChild(entry -> "storage".equals(entry.getDirectoryEntryName()));
+        assertArrayEquals(regular, storage.<StreamDirectoryEntry>findChild(entry -> "regular".equals(entry.getDirectoryEntryName())).getStreamData());
+        assertEquals(0, storage.<StreamDirectoryEntry>findChild(entry -> "empty".equals(entry.getDirectoryEntryName())).getStreamSize());
+        StorageDirectoryEntry nested = storage.findChild(entry -> "nested".equals(entry.getDirectoryEntryName()));
+        assertArrayEquals(new byte[]{5, 6, 7, 8, 9}, nested.<StreamDirectoryEntry>findChild(entry -> "supplied".equals(entry.getDirectoryEntryName())).getStreamData());
+        StorageDirectoryEntry empty = root.findChild(entry -> "empty".equals(entry.getDirectoryEntryName()));
+        assertEquals(1, empty.storages().count());
+    }
+
+    @Test
+    void testSiblingTreeIsBalancedRedBlackTree() {
+        CompoundFileBuilder builder = new CompoundFileBuilder(Header.Version.V4);
+        for (int i = 0; i < 1000; i++) {
+            builder.stream("stream" + i, new byte[]{(byte) i});
+        }
+        Path path = tempDir.resolve("built.cfb");
+        builder.writeTo(path);
+        try(CompoundFile compoundFile = CompoundFile.open(path)) {
+            RootStorageDirectoryEntry root = compoundFile.getRootStorage();
+            assertEquals(1000, root.streams().count());
+            DirectoryEntry treeRoot = root.getChild().get();
+            assertEquals(DirectoryEntry.ColorFlag.BLACK, treeRoot.getColorFlag());
+            assertTrue(blackHeight(Optional.of(treeRoot)) > 0);
+            for (int i = 0; i < 1000; i++) {
+                String name = "stream" + i;
+                assertArrayEquals(new byte[]{(byte) i}, root.<StreamDirectoryEntry>findChild(entry -> name.equals(entry.getDirectoryEntryName())).getStreamData());
+            }
+            root.addStream("added", new byte[]{1});
+            assertEquals(1001, root.streams().count());
+        }
+    }
+
+    @Test
+    void testInvalidPaths() {
+        CompoundFileBuilder builder = new CompoundFileBuilder().stream("a/b", new byte[1]);
+        assertThrows(IllegalArgumentException.class, () -> builder.stream("A/B", new byte[1]));
+        assertThrows(IllegalArgumentException.class, () -> builder.stream("a/b/c", new byte[1]));
+        assertThrows(IllegalArgumentException.class, () -> builder.stream("/", new byte[1]));
+        assertThrows(IllegalArgumentException.class, () -> builder.storage("a/" + Strings.repeat("x", 32)));
+    }
+
+    private static int blackHeight(Optional<DirectoryEntry> entry) {
+        if(!entry.isPresent()) {
+            return 1;
+        }
+        DirectoryEntry node = entry.get();
+        if(node.getColorFlag() == DirectoryEntry.ColorFlag.RED) {
+            node.getLeftSibling().ifPresent(left -> assertEquals(DirectoryEntry.ColorFlag.BLACK, left.getColorFlag()));
+            node.getRightSibling().ifPresent(right -> assertEquals(DirectoryEntry.ColorFlag.BLACK, right.getColorFlag()));
+        }
+        int left = blackHeight(node.getLeftSibling());
+        assertEquals(left, blackHeight(node.getRightSibling()));
+        return left + (node.getColorFlag() == DirectoryEntry.ColorFlag.BLACK ? 1 : 0);
+    }
+}
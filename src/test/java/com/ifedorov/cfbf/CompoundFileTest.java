@@ -1,11 +1,31 @@
 package com.ifedorov.cfbf;
 
+import com.google.common.collect.Lists;
+import com.google.common.collect.Sets;
+import org.apache.commons.lang3.ArrayUtils;
 import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
 
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.nio.Buffer;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.List;
+import java.util.NoSuchElementException;
+import java.util.function.Function;
+import java.util.stream.Collectors;
+
+import static com.ifedorov.cfbf.Header.HEADER_LENGTH;
 import static org.junit.jupiter.api.Assertions.*;
 
 class CompoundFileTest {
 
+    @TempDir Path tempDir;
+
     @Test
     void newCompoundFile() {
         CompoundFile compoundFile = new CompoundFile();
@@ -30,4 +50,440 @@ class CompoundFileTest {
         assertTrue(copy.getRootStorage().children().anyMatch((directoryEntry -> "stream1".equals(directoryEntry.getDirectoryEntryName()))));
     }
 
-}
\ No newline at end of file
+    @Test
+    void testSaveToChannelAndStreamProduceSameBytes() throws IOException {
+        CompoundFile compoundFile = new CompoundFile();
+        compoundFile.getRootStorage().addStream("regular", Utils.initializedWith(10000, 3));
+        compoundFile.getRootStorage().addStream("mini", new byte[]{1, 2, 3});
+        ByteArrayOutputStream os = new ByteArrayOutputStream();
+        compoundFile.saveTo(os);
+        Path file = tempDir.resolve("saved.cfb");
+        compoundFile.saveTo(file.toFile());
+        assertArrayEquals(os.toByteArray(), Files.readAllBytes(file));
+        assertEquals(0, os.size() % Header.HEADER_LENGTH);
+
+        try(CompoundFile mapped = CompoundFile.open(file)) {
+            Path copy = tempDir.resolve("copy.cfb");
+            mapped.saveTo(copy);
+            assertArrayEquals(os.toByteArray(), Files.readAllBytes(copy));
+        }
+    }
+
+    @Test
+    void testSaveOverSourceFileIsRejected() {
+        CompoundFile compoundFile = new CompoundFile();
+        compoundFile.getRootStorage().addStream("stream1", new byte[]{1, 2, 3});
+        Path file = tempDir.resolve("source.cfb");
+        compoundFile.saveTo(file.toFile());
+        try(CompoundFile mapped = CompoundFile.open(file)) {
+            assertThrows(IllegalArgumentException.class, () -> mapped.saveTo(file));
+        }
+        try(CompoundFile cached = CompoundFile.openCached(file, 0)) {
+            assertThrows(IllegalArgumentException.class, () -> cached.saveTo(file.toFile()));
+        }
+    }
+
+    @Test
+    void testOffHeapCompoundFileFromByteBuffer() {
+        CompoundFile compoundFile = CompoundFile.offHeap();
+        compoundFile.getRootStorage().addStream("regular", Utils.initializedWith(5000, 4));
+        ByteArrayOutputStream os = new ByteArrayOutputStream();
+        compoundFile.saveTo(os);
+        ByteBuffer buffer = ByteBuffer.allocateDirect(os.size());
+        buffer.put(os.toByteArray());
+        ((Buffer) buffer).flip();
+
+        CompoundFile adopted = CompoundFile.from(buffer);
+        StreamDirectoryEntry regular = adopted.getRootStorage().findChild(entry -> "regular".equals(entry.getDirectoryEntryName()));
+        assertArrayEquals(Utils.initializedWith(5000, 4), regular.getStreamData());
+        adopted.getRootStorage().addStream("mini", new byte[]{1, 2, 3});
+        StreamDirectoryEntry mini = adopted.getRootStorage().findChild(entry -> "mini".equals(entry.getDirectoryEntryName()));
+        assertArrayEquals(new byte[]{1, 2, 3}, mini.getStreamData());
+    }
+
+    @Test
+    void testCompoundFileFromReadOnlyByteBuffer() {
+        CompoundFile compoundFile = new CompoundFile();
+        StorageDirectoryEntry storage = compoundFile.getRootStorage().addStorage("storage");
+        storage.addStream("regular", Utils.initializedWith(5000, 4));
+        compoundFile.getRootStorage().addStream("mini", new byte[]{1, 2, 3});
+
+        CompoundFile adopted = CompoundFile.from(ByteBuffer.wrap(bytes(compoundFile)).asReadOnlyBuffer());
+        StorageDirectoryEntry adoptedStorage = adopted.getRootStorage().findChild(entry -> "storage".equals(entry.getDirectoryEntryName()));
+        assertArrayEquals(Utils.initializedWith(5000, 4), adoptedStorage.<StreamDirectoryEntry>findChild(entry -> "regular".equals(entry.getDirectoryEntryName())).getStreamData());
+        StreamDirectoryEntry mini = adopted.getRootStorage().findChild(entry -> "mini".equals(entry.getDirectoryEntryName()));
+        assertArrayEquals(new byte[]{1, 2, 3}, mini.getStreamData());
+        assertThrows(IllegalStateException.class, () -> mini.setStreamData(new byte[]{4}));
+    }
+
+    @Test
+    void testCommitKeepsPreviousVersionReachableFromPreviousHeader() throws IOException {
+        CompoundFile compoundFile = new CompoundFile();
+        compoundFile.getRootStorage().addStream("regular", Utils.initializedWith(10000, 1));
+        compoundFile.getRootStorage().addStream("mini", new byte[]{1, 2, 3});
+        Path file = tempDir.resolve("shadow.cfb");
+        compoundFile.saveTo(file.toFile());
+        byte[] original = Files.readAllBytes(file);
+
+        byte[] firstCommit;
+        try(CompoundFile mapped = CompoundFile.open(file)) {
+            mapped.getRootStorage().addStream("added", Utils.initializedWith(5000, 2));
+            mapped.getRootStorage().addStream("addedMini", new byte[]{4, 5});
+            mapped.commit();
+            firstCommit = Files.readAllBytes(file);
+            mapped.getRootStorage().addStream("addedLater", new byte[]{6});
+            mapped.commit();
+        }
+        byte[] secondCommit = Files.readAllBytes(file);
+
+        assertStreams(withHeaderOf(original, firstCommit), "regular", "mini");
+        assertStreams(withHeaderOf(firstCommit, secondCommit), "regular", "mini", "added", "addedMini");
+        assertStreams(secondCommit, "regular", "mini", "added", "addedMini", "addedLater");
+        CompoundFile reopened = new CompoundFile(DataView.from(secondCommit));
+        StreamDirectoryEntry added = reopened.getRootStorage().findChild(entry -> "added".equals(entry.getDirectoryEntryName()));
+        assertArrayEquals(Utils.initializedWith(5000, 2), added.getStreamData());
+    }
+
+    @Test
+    void testStreamsRewrittenInPlaceKeepCommittedVersion() throws IOException {
+        CompoundFile compoundFile = new CompoundFile();
+        compoundFile.getRootStorage().addStream("regular", Utils.initializedWith(10000, 1));
+        compoundFile.getRootStorage().addStream("mini", new byte[]{1, 2, 3});
+        Path file = tempDir.resolve("rewritten.cfb");
+        compoundFile.saveTo(file);
+        byte[] original = Files.readAllBytes(file);
+
+        try(CompoundFile mapped = CompoundFile.open(file)) {
+            StreamDirectoryEntry regular = mapped.getRootStorage().findChild(entry -> "regular".equals(entry.getDirectoryEntryName()));
+            regular.setStreamData(Utils.initializedWith(10000, 7));
+            regular.writeAt(0, new byte[]{8});
+            StreamDirectoryEntry mini = mapped.getRootStorage().findChild(entry -> "mini".equals(entry.getDirectoryEntryName()));
+            mini.setStreamData(new byte[]{4, 5, 6});
+            mapped.commit();
+        }
+        byte[] committed = Files.readAllBytes(file);
+
+        assertStreams(withHeaderOf(original, committed), "regular", "mini");
+        CompoundFile reopened = new CompoundFile(DataView.from(committed));
+        byte[] rewritten = Utils.initializedWith(10000, 7);
+        rewritten[0] = 8;
+        assertArrayEquals(rewritten, reopened.getRootStorage().<StreamDirectoryEntry>findChild(entry -> "regular".equals(entry.getDirectoryEntryName())).getStreamData());
+        assertArrayEquals(new byte[]{4, 5, 6}, reopened.getRootStorage().<StreamDirectoryEntry>findChild(entry -> "mini".equals(entry.getDirectoryEntryName())).getStreamData());
+    }
+
+    @Test
+    void testRepeatedCommitsReuseVacatedSectors() throws IOException {
+        CompoundFile compoundFile = new CompoundFile();
+        compoundFile.getRootStorage().addStream("regular", Utils.initializedWith(10000, 1));
+        compoundFile.getRootStorage().addStream("mini", new byte[]{1, 2, 3});
+        Path file = tempDir.resolve("reused.cfb");
+        compoundFile.saveTo(file);
+
+        long sizeAfterWarmUp = 0;
+        try(CompoundFile mapped = CompoundFile.open(file)) {
+            for (int i = 0; i < 50; i++) {
+                StreamDirectoryEntry mini = mapped.getRootStorage().findChild(entry -> "mini".equals(entry.getDirectoryEntryName()));
+                mini.setStreamData(Utils.initializedWith(3 + i % 2, i));
+                mapped.commit();
+                if(i == 4) {
+                    sizeAfterWarmUp = Files.size(file);
+                }
+            }
+        }
+        assertEquals(sizeAfterWarmUp, Files.size(file));
+        assertArrayEquals(Utils.initializedWith(4, 49), new CompoundFile(DataView.from(Files.readAllBytes(file))).getRootStorage().<StreamDirectoryEntry>findChild(entry -> "mini".equals(entry.getDirectoryEntryName())).getStreamData());
+    }
+
+    @Test
+    void testCommitRelocatesDifatSectors() throws IOException {
+        int fatSectorsInHeader = Header.DIFAT_ENTRIES_LIMIT_IN_HEADER;
+        int entriesInOneFatSector = Header.SECTOR_SHIFT_VERSION_3_INT / 4;
+        byte[] large = Utils.initializedWith(fatSectorsInHeader * entriesInOneFatSector * 512, 3);
+        CompoundFile compoundFile = new CompoundFile();
+        compoundFile.getRootStorage().addStream("large", large);
+        Path file = tempDir.resolve("difat.cfb");
+        compoundFile.saveTo(file.toFile());
+        byte[] original = Files.readAllBytes(file);
+        assertNotEquals(Utils.ENDOFCHAIN_MARK_INT, new Header(DataView.from(original).subView(0, Header.HEADER_LENGTH)).getFirstDifatSectorLocation());
+
+        try(CompoundFile mapped = CompoundFile.open(file)) {
+            mapped.getRootStorage().addStream("added", Utils.initializedWith(entriesInOneFatSector * 512, 4));
+            mapped.commit();
+        }
+        byte[] committed = Files.readAllBytes(file);
+
+        CompoundFile previous = new CompoundFile(DataView.from(withHeaderOf(original, committed)));
+        assertEquals(1, previous.getRootStorage().children().count());
+        StreamDirectoryEntry previousLarge = previous.getRootStorage().findChild(entry -> "large".equals(entry.getDirectoryEntryName()));
+        assertArrayEquals(large, previousLarge.getStreamData());
+        CompoundFile current = new CompoundFile(DataView.from(committed));
+        StreamDirectoryEntry currentLarge = current.getRootStorage().findChild(entry -> "large".equals(entry.getDirectoryEntryName()));
+        StreamDirectoryEntry added = current.getRootStorage().findChild(entry -> "added".equals(entry.getDirectoryEntryName()));
+        assertArrayEquals(large, currentLarge.getStreamData());
+        assertArrayEquals(Utils.initializedWith(entriesInOneFatSector * 512, 4), added.getStreamData());
+    }
+
+    @Test
+    void testFromInputStreamAboveHeapThreshold() {
+        CompoundFile compoundFile = new CompoundFile();
+        compoundFile.getRootStorage().addStream("regular", Utils.initializedWith(20000, 6));
+        ByteArrayOutputStream os = new ByteArrayOutputStream();
+        compoundFile.saveTo(os);
+        try(CompoundFile spooled = CompoundFile.from(new ByteArrayInputStream(os.toByteArray()), 4096)) {
+            StreamDirectoryEntry regular = spooled.getRootStorage().findChild(entry -> "regular".equals(entry.getDirectoryEntryName()));
+            assertArrayEquals(Utils.initializedWith(20000, 6), regular.getStreamData());
+        }
+    }
+
+    @Test
+    void testVersion4RoundTrip() throws IOException {
+        CompoundFile compoundFile = new CompoundFile(Header.Version.V4);
+        StorageDirectoryEntry storage = compoundFile.getRootStorage().addStorage("storage");
+        for (int i = 0; i < 40; i++) {
+            storage.addStream("stream" + i, Utils.initializedWith(100 + i, i));
+        }
+        byte[] regular = new byte[50000];
+        for (int i = 0; i < regular.length; i++) {
+            regular[i] = (byte) (i % 251);
+        }
+        compoundFile.getRootStorage().addStream("regular", regular);
+        ByteArrayOutputStream os = new ByteArrayOutputStream();
+        compoundFile.saveTo(os);
+        byte[] saved = os.toByteArray();
+        assertEquals(0, saved.length % Header.SECTOR_SHIFT_VERSION_4_INT);
+        Header header = new Header(DataView.from(saved).subView(0, Header.HEADER_LENGTH));
+        assertEquals(Header.Version.V4, header.getVersion());
+        assertEquals(2, header.getNumberOfDirectorySectors());
+
+        Path file = Files.write(tempDir.resolve("v4.cfb"), saved);
+        CompoundFile fromBytes = new CompoundFile(DataView.from(saved));
+        CompoundFile fromStream = CompoundFile.from(new ByteArrayInputStream(saved), Long.MAX_VALUE);
+        try(CompoundFile mapped = CompoundFile.open(file); CompoundFile cached = CompoundFile.openCached(file, 0)) {
+            for (CompoundFile reopened : new CompoundFile[]{fromBytes, fromStream, mapped, cached}) {
+                StorageDirectoryEntry reopenedStorage = reopened.getRootStorage().findChild(entry -> "storage".equals(entry.getDirectoryEntryName()));
+                for (int i = 0; i < 40; i++) {
+                    String name = "stream" + i;
+                    StreamDirectoryEntry stream = reopenedStorage.findChild(entry -> name.equals(entry.getDirectoryEntryName()));
+                    assertArrayEquals(Utils.initializedWith(100 + i, i), stream.getStreamData());
+                }
+                StreamDirectoryEntry reopenedRegular = reopened.getRootStorage().findChild(entry -> "regular".equals(entry.getDirectoryEntryName()));
+                assertArrayEquals(regular, reopenedRegular.getStreamData());
+            }
+            mapped.getRootStorage().addStream("added", Utils.initializedWith(9000, 7));
+            mapped.commit();
+        }
+        CompoundFile committed = new CompoundFile(DataView.from(Files.readAllBytes(file)));
+        StreamDirectoryEntry added = committed.getRootStorage().findChild(entry -> "added".equals(entry.getDirectoryEntryName()));
+        assertArrayEquals(Utils.initializedWith(9000, 7), added.getStreamData());
+    }
+
+    @Test
+    void testCompact() throws IOException {
+        CompoundFile compoundFile = new CompoundFile();
+        StorageDirectoryEntry storage = compoundFile.getRootStorage().addStorage("storage");
+        storage.setCLSID(Utils.initializedWith(16, 3));
+        StreamDirectoryEntry first = storage.addStream("first", Utils.initializedWith(5000, 1));
+        StreamDirectoryEntry second = compoundFile.getRootStorage().addStream("second", Utils.initializedWith(5000, 2));
+        for (int i = 0; i < 5; i++) {
+            first.append(Utils.initializedWith(600, 1));
+            second.append(Utils.initializedWith(600, 2));
+        }
+        StreamDirectoryEntry replaced = compoundFile.getRootStorage().addStream("replaced", Utils.initializedWith(20000, 4));
+        replaced.setStreamData(Utils.initializedWith(100, 5));
+        StreamDirectoryEntry promoted = compoundFile.getRootStorage().addStream("promoted", Utils.initializedWith(4000, 6));
+        promoted.append(Utils.initializedWith(200, 6));
+
+        Path target = tempDir.resolve("compacted.cfb");
+        long reclaimed = compoundFile.compact(target);
+        assertTrue(reclaimed > 0, "reclaimed " + reclaimed);
+        ByteArrayOutputStream os = new ByteArrayOutputStream();
+        compoundFile.saveTo(os);
+        assertEquals(os.size() - reclaimed, Files.size(target));
+
+        try(CompoundFile compacted = CompoundFile.open(target)) {
+            StorageDirectoryEntry compactedStorage = compacted.getRootStorage().findChild(entry -> "storage".equals(entry.getDirectoryEntryName()));
+            assertArrayEquals(Utils.initializedWith(16, 3), compactedStorage.getCLSID());
+            StreamDirectoryEntry compactedFirst = compactedStorage.findChild(entry -> "first".equals(entry.getDirectoryEntryName()));
+            assertArrayEquals(Utils.initializedWith(8000, 1), compactedFirst.getStreamData());
+            StreamDirectoryEntry compactedSecond = compacted.getRootStorage().findChild(entry -> "second".equals(entry.getDirectoryEntryName()));
+            assertArrayEquals(Utils.initializedWith(8000, 2), compactedSecond.getStreamData());
+            StreamDirectoryEntry compactedReplaced = compacted.getRootStorage().findChild(entry -> "replaced".equals(entry.getDirectoryEntryName()));
+            assertArrayEquals(Utils.initializedWith(100, 5), compactedReplaced.getStreamData());
+            StreamDirectoryEntry compactedPromoted = compacted.getRootStorage().findChild(entry -> "promoted".equals(entry.getDirectoryEntryName()));
+            assertArrayEquals(Utils.initializedWith(4200, 6), compactedPromoted.getStreamData());
+        }
+    }
+
+    @Test
+    void testRemoveReclaimsSectorsAndDirectoryEntries() {
+        CompoundFile compoundFile = new CompoundFile();
+        StorageDirectoryEntry storage = compoundFile.getRootStorage().addStorage("storage");
+        storage.addStream("regular", Utils.initializedWith(20000, 1));
+        storage.addStream("mini", Utils.initializedWith(1000, 2));
+        compoundFile.getRootStorage().addStream("kept", Utils.initializedWith(100, 3));
+        int sizeBeforeRemoval = size(compoundFile);
+
+        compoundFile.getRootStorage().remove("STORAGE");
+        assertTrue(compoundFile.getRootStorage().children().noneMatch(entry -> "storage".equals(entry.getDirectoryEntryName())));
+        assertThrows(NoSuchElementException.class, () -> compoundFile.getRootStorage().remove("storage"));
+        StorageDirectoryEntry added = compoundFile.getRootStorage().addStorage("added");
+        StreamDirectoryEntry addedRegular = added.addStream("regular", Utils.initializedWith(20000, 4));
+        added.addStream("mini", Utils.initializedWith(1000, 5));
+        assertTrue(added.getId() < 4 && addedRegular.getId() < 4);
+        assertEquals(sizeBeforeRemoval, size(compoundFile));
+
+        CompoundFile reopened = new CompoundFile(DataView.from(bytes(compoundFile)));
+        assertEquals(2, reopened.getRootStorage().children().count());
+        StorageDirectoryEntry reopenedStorage = reopened.getRootStorage().findChild(entry -> "added".equals(entry.getDirectoryEntryName()));
+        assertArrayEquals(Utils.initializedWith(20000, 4), reopenedStorage.<StreamDirectoryEntry>findChild(entry -> "regular".equals(entry.getDirectoryEntryName())).getStreamData());
+        assertArrayEquals(Utils.initializedWith(1000, 5), reopenedStorage.<StreamDirectoryEntry>findChild(entry -> "mini".equals(entry.getDirectoryEntryName())).getStreamData());
+        assertArrayEquals(Utils.initializedWith(100, 3), reopened.getRootStorage().<StreamDirectoryEntry>findChild(entry -> "kept".equals(entry.getDirectoryEntryName())).getStreamData());
+        reopened.getRootStorage().remove("added");
+        reopened.getRootStorage().remove("kept");
+        assertEquals(0, new CompoundFile(DataView.from(bytes(reopened))).getRootStorage().children().count());
+    }
+
+    @Test
+    void testFreedMiniSectorsAreReusedAndFreeTailIsTruncated() {
+        CompoundFile compoundFile = new CompoundFile();
+        compoundFile.getRootStorage().addStream("first", Utils.initializedWith(1000, 1));
+        compoundFile.getRootStorage().addStream("second", Utils.initializedWith(200, 2));
+        compoundFile.getRootStorage().addStream("third", Utils.initializedWith(100, 3));
+        assertEquals(22 * 64, miniStreamLength(bytes(compoundFile)));
+
+        compoundFile.getRootStorage().remove("first");
+        assertEquals(22 * 64, miniStreamLength(bytes(compoundFile)));
+        compoundFile.getRootStorage().addStream("reused", Utils.initializedWith(300, 4));
+        assertEquals(22 * 64, miniStreamLength(bytes(compoundFile)));
+        compoundFile.getRootStorage().remove("third");
+        assertEquals(20 * 64, miniStreamLength(bytes(compoundFile)));
+        compoundFile.getRootStorage().remove("second");
+        assertEquals(5 * 64, miniStreamLength(bytes(compoundFile)));
+
+        CompoundFile reopened = new CompoundFile(DataView.from(bytes(compoundFile)));
+        assertArrayEquals(Utils.initializedWith(300, 4), reopened.getRootStorage().<StreamDirectoryEntry>findChild(entry -> "reused".equals(entry.getDirectoryEntryName())).getStreamData());
+        reopened.getRootStorage().remove("reused");
+        assertEquals(0, miniStreamLength(bytes(reopened)));
+        reopened.getRootStorage().addStream("added", Utils.initializedWith(100, 5));
+        assertArrayEquals(Utils.initializedWith(100, 5), new CompoundFile(DataView.from(bytes(reopened))).getRootStorage().<StreamDirectoryEntry>findChild(entry -> "added".equals(entry.getDirectoryEntryName())).getStreamData());
+    }
+
+    @Test
+    void testCommitPersistsTrimmedMiniStream() throws IOException {
+        CompoundFile compoundFile = new CompoundFile();
+        compoundFile.getRootStorage().addStream("kept", Utils.initializedWith(100, 1));
+        compoundFile.getRootStorage().addStream("removed", Utils.initializedWith(1000, 2));
+        Path file = tempDir.resolve("trimmed.cfb");
+        compoundFile.saveTo(file);
+        assertEquals(18 * 64, miniStreamLength(Files.readAllBytes(file)));
+
+        try(CompoundFile mapped = CompoundFile.open(file)) {
+            mapped.getRootStorage().remove("removed");
+            mapped.commit();
+        }
+        byte[] committed = Files.readAllBytes(file);
+        assertEquals(2 * 64, miniStreamLength(committed));
+        CompoundFile reopened = new CompoundFile(DataView.from(committed));
+        assertArrayEquals(Utils.initializedWith(100, 1), reopened.getRootStorage().<StreamDirectoryEntry>findChild(entry -> "kept".equals(entry.getDirectoryEntryName())).getStreamData());
+        reopened.getRootStorage().addStream("added", Utils.initializedWith(100, 3));
+        assertEquals(4 * 64, miniStreamLength(bytes(reopened)));
+    }
+
+    @Test
+    void testSectorsFreedBeforeCommitAreNotReused() throws IOException {
+        CompoundFile compoundFile = new CompoundFile();
+        compoundFile.getRootStorage().addStream("removed", Utils.initializedWith(20000, 1));
+        compoundFile.getRootStorage().addStream("removedMini", Utils.initializedWith(100, 2));
+        Path file = tempDir.resolve("reclaimed.cfb");
+        compoundFile.saveTo(file);
+        byte[] original = Files.readAllBytes(file);
+
+        try(CompoundFile mapped = CompoundFile.open(file)) {
+            mapped.getRootStorage().remove("removed");
+            mapped.getRootStorage().remove("removedMini");
+            mapped.getRootStorage().addStream("added", Utils.initializedWith(20000, 3));
+            mapped.getRootStorage().addStream("addedMini", Utils.initializedWith(100, 4));
+            mapped.commit();
+            long committedSize = Files.size(file);
+            assertTrue(committedSize > original.length);
+            mapped.getRootStorage().addStream("reused", Utils.initializedWith(20000, 5));
+            mapped.commit();
+            assertTrue(Files.size(file) < committedSize + 20000);
+        }
+        byte[] committed = Files.readAllBytes(file);
+        CompoundFile reopened = new CompoundFile(DataView.from(committed));
+        assertArrayEquals(Utils.initializedWith(20000, 3), reopened.getRootStorage().<StreamDirectoryEntry>findChild(entry -> "added".equals(entry.getDirectoryEntryName())).getStreamData());
+        assertArrayEquals(Utils.initializedWith(100, 4), reopened.getRootStorage().<StreamDirectoryEntry>findChild(entry -> "addedMini".equals(entry.getDirectoryEntryName())).getStreamData());
+        assertArrayEquals(Utils.initializedWith(20000, 5), reopened.getRootStorage().<StreamDirectoryEntry>findChild(entry -> "reused".equals(entry.getDirectoryEntryName())).getStreamData());
+    }
+
+    @Test
+    void testHeldEntriesInReusedDirectorySectorsSurviveCommits() throws IOException {
+        assertHeldEntriesSurviveCommits(CompoundFile::open, "held-mapped.cfb");
+        assertHeldEntriesSurviveCommits(path -> CompoundFile.openCached(path, 0), "held-cached.cfb");
+    }
+
+    private void assertHeldEntriesSurviveCommits(Function<Path, CompoundFile> open, String fileName) throws IOException {
+        CompoundFile compoundFile = new CompoundFile();
+        compoundFile.getRootStorage().addStream("removed", Utils.initializedWith(20000, 1));
+        Path file = tempDir.resolve(fileName);
+        compoundFile.saveTo(file);
+
+        List<StreamDirectoryEntry> held = Lists.newArrayList();
+        try(CompoundFile opened = open.apply(file)) {
+            opened.getRootStorage().remove("removed");
+            opened.commit();
+            for (int i = 0; i < 8; i++) {
+                held.add(opened.getRootStorage().addStream("held" + i, Utils.initializedWith(6000, i)));
+            }
+            opened.commit();
+            held.forEach(entry -> entry.writeAt(0, new byte[]{9}));
+            opened.commit();
+            for (StreamDirectoryEntry entry : held) {
+                StreamDirectoryEntry found = opened.getRootStorage().findChild(child -> entry.getDirectoryEntryName().equals(child.getDirectoryEntryName()));
+                assertEquals(found.getStreamStartingSector(), entry.getStreamStartingSector());
+                assertEquals(6000, entry.getStreamSize());
+                entry.append(new byte[]{7});
+            }
+            opened.commit();
+        }
+        CompoundFile reopened = new CompoundFile(DataView.from(Files.readAllBytes(file)));
+        for (int i = 0; i < 8; i++) {
+            byte[] expected = ArrayUtils.add(Utils.initializedWith(6000, i), (byte) 7);
+            expected[0] = 9;
+            String name = "held" + i;
+            assertArrayEquals(expected, reopened.getRootStorage().<StreamDirectoryEntry>findChild(entry -> name.equals(entry.getDirectoryEntryName())).getStreamData());
+        }
+    }
+
+    private static int size(CompoundFile compoundFile) {
+        return bytes(compoundFile).length;
+    }
+
+    private static int miniStreamLength(byte[] compoundFile) {
+        ByteBuffer buffer = ByteBuffer.wrap(compoundFile).order(ByteOrder.LITTLE_ENDIAN);
+        return buffer.getInt((buffer.getInt(48) + 1) * HEADER_LENGTH + DirectoryEntry.FLAG_POSITION.STREAM_SIZE);
+    }
+
+    private static byte[] bytes(CompoundFile compoundFile) {
+        ByteArrayOutputStream os = new ByteArrayOutputStream();
+        compoundFile.saveTo(os);
+        return os.toByteArray();
+    }
+
+    private static byte[] withHeaderOf(byte[] previous, byte[] current) {
+        byte[] result = Utils.copy(current);
+        System.arraycopy(previous, 0, result, 0, Header.HEADER_LENGTH);
+        return result;
+    }
+
+    private static void assertStreams(byte[] data, String... names) {
+        CompoundFile compoundFile = new CompoundFile(DataView.from(data));
+        assertEquals(Sets.newHashSet(names), compoundFile.getRootStorage().children().map(DirectoryEntry::getDirectoryEntryName).collect(Collectors.toSet()));
+        StreamDirectoryEntry regular = compoundFile.getRootStorage().findChild(entry -> "regular".equals(entry.getDirectoryEntryName()));
+        StreamDirectoryEntry mini = compoundFile.getRootStorage().findChild(entry -> "mini".equals(entry.getDirectoryEntryName()));
+        assertArrayEquals(Utils.initializedWith(10000, 1), regular.getStreamData());
+        assertArrayEquals(new byte[]{1, 2, 3}, mini.getStreamData());
+    }
+
+}
@@ -0,0 +1,102 @@
+package com.ifedorov.cfbf;
+
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.InputStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class CompoundFileWriterTest {
+
+    @TempDir
+    Path tempDir;
+
+    @Test
+    void testWriteToFile() {
+        Path path = tempDir.resolve("written.cfb");
+        byte[] regular = bytes(10000);
+        byte[] unsized = bytes(5000);
+        try(CompoundFileWriter writer = CompoundFileWriter.create(path)) {
+            CompoundFileWriter.Storage root = writer.getRootStorage();
+            root.addStream("mini", new byte[]{1, 2, 3});
+            root.addStream("regular", regular);
+            CompoundFileWriter.Storage storage = root.addStorage("storage");
+            storage.addStream("unsized", new ByteArrayInputStream(unsized));
+            storage.addStream("unsizedMini", new ByteArrayInputStream(new byte[]{4, 5}));
+            storage.addStream("supplied", 100, () -> new ByteArrayInputStream(bytes(100)));
+            storage.addStream("empty", new byte[0]);
+        }
+        try(CompoundFile compoundFile = CompoundFile.open(path)) {
+            RootStorageDirectoryEntry root = compoundFile.getRootStorage();
+            assertArrayEquals(new byte[]{1, 2, 3}, root.<StreamDirectoryEntry>findChild(entry -> "mini".equals(entry.getDirectoryEntryName())).getStreamData());
+            assertArrayEquals(regular, root.<StreamDirectoryEntry>findChild(entry -> "regular".equals(entry.getDirectoryEntryName())).getStreamData());
+            StorageDirectoryEntry storage = root.findChild(entry -> "storage".equals(entry.getDirectoryEntryName()));
+            assertArrayEquals(unsized, storage.<StreamDirectoryEntry>findChild(entry -> "unsized".equals(entry.getDirectoryEntryName())).getStreamData());
+            assertArrayEquals(new byte[]{4, 5}, storage.<StreamDirectoryEntry>findChild(entry -> "unsizedMini".equals(entry.getDirectoryEntryName())).getStreamData());
+            assertArrayEquals(bytes(100), storage.<StreamDirectoryEntry>findChild(entry -> "supplied".equals(entry.getDirectoryEntryName())).getStreamData());
+            assertEquals(0, storage.<StreamDirectoryEntry>findChild(entry -> "empty".equals(entry.getDirectoryEntryName())).getStreamSize());
+        }
+    }
+
+    @Test
+    void testWriteToOutputStream() {
+        ByteArrayOutputStream os = new ByteArrayOutputStream();
+        try(CompoundFileWriter writer = CompoundFileWriter.create(os, Header.Version.V4)) {
+            assertTrue(writer.isSequential());
+            CompoundFileWriter.Storage root = writer.getRootStorage();
+            for (int i = 0; i < 300; i++) {
+                root.addStream("stream" + i, bytes(i * 20));
+            }
+            assertThrows(IllegalStateException.class, () -> root.addStream("unsized", new ByteArrayInputStream(new byte[1])));
+        }
+        assertEquals(0, os.size() % Header.Version.V4.getSectorSize());
+        CompoundFile compoundFile = new CompoundFile(DataView.from(os.toByteArray()));
+        assertEquals(300, compoundFile.getRootStorage().streams().count());
+        for (int i = 0; i < 300; i++) {
+            String name = "stream" + i;
+            assertArrayEquals(bytes(i * 20), compoundFile.getRootStorage().<StreamDirectoryEntry>findChild(entry -> name.equals(entry.getDirectoryEntryName())).getStreamData());
+        }
+    }
+
+    @Test
+    void testLargeFileNeedsDifatSectors() {
+        ByteArrayOutputStream os = new ByteArrayOutputStream();
+        int size = 8 * 1024 * 1024;
+        try(CompoundFileWriter writer = CompoundFileWriter.create(os)) {
+            writer.getRootStorage().addStream("large", size, () -> new InputStream() {
+                private int position;
+
+                @Override
+                public int read() {
+                    return position < size ? (position++ & 0x7F) : -1;
+                }
+            });
+        }
+        CompoundFile compoundFile = new CompoundFile(DataView.from(os.toByteArray()));
+        StreamDirectoryEntry large = compoundFile.getRootStorage().findChild(entry -> "large".equals(entry.getDirectoryEntryName()));
+        assertEquals(size, large.getStreamSize());
+        assertArrayEquals(new byte[]{126, 127, 0, 1}, large.read(size - 130, size - 126));
+    }
+
+    @Test
+    void testDeclaredSizeIsVerified() throws Exception {
+        Path path = tempDir.resolve("short.cfb");
+        CompoundFileWriter writer = CompoundFileWriter.create(path);
+        assertThrows(RuntimeException.class, () -> writer.getRootStorage().addStream("short", 10000, () -> new ByteArrayInputStream(new byte[100])));
+        writer.close();
+        assertTrue(Files.exists(path));
+    }
+
+    private static byte[] bytes(int length) {
+        byte[] bytes = new byte[length];
+        for (int i = 0; i < length; i++) {
+            bytes[i] = (byte) (i * 7);
+        }
+        return bytes;
+    }
+}
@@ -4,6 +4,12 @@ import com.google.common.base.VerifyException;
 import com.google.common.collect.Lists;
 import org.junit.jupiter.api.Test;
 
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.nio.Buffer;
+import java.nio.ByteBuffer;
+import java.nio.file.Files;
+import java.nio.file.Path;
 import java.util.Arrays;
 
 import static org.junit.jupiter.api.Assertions.*;
@@ -71,4 +77,55 @@ public class DataViewTest {
         assertArrayEquals(Utils.initializedWith(10, 30), dataView.getData());
     }
 
+    @Test
+    void testFromByteBufferDoesNotCopy() {
+        ByteBuffer buffer = ByteBuffer.allocateDirect(1024 + 16);
+        ((Buffer) buffer).position(16);
+        DataView.FixedSizeChunkedDataView dataView = (DataView.FixedSizeChunkedDataView) DataView.from(buffer);
+        assertEquals(2, dataView.getChunkCount());
+        assertTrue(dataView.isOffHeap());
+        dataView.writeAt(600, new byte[]{1, 2});
+        assertEquals(1, buffer.get(16 + 600));
+        assertEquals(2, buffer.get(16 + 601));
+        buffer.put(16 + 5, (byte) 7);
+        assertEquals(7, dataView.chunk(0).readAt(5, 1)[0]);
+        assertThrows(VerifyException.class, () -> DataView.from(ByteBuffer.allocate(100)));
+    }
+
+    @Test
+    void testOffHeapAllocation() {
+        DataView.FixedSizeChunkedDataView dataView = (DataView.FixedSizeChunkedDataView) DataView.emptyOffHeap();
+        for (int i = 0; i < DataView.FixedSizeChunkedDataView.OFF_HEAP_SLAB_CHUNKS + 1; i++) {
+            dataView.allocate(512).fill(new byte[]{(byte) i});
+        }
+        for (int i = 0; i < dataView.getChunkCount(); i++) {
+            assertTrue(dataView.chunk(i).asByteBuffer().isDirect());
+            assertArrayEquals(Utils.initializedWith(512, i), dataView.chunk(i).getData());
+        }
+    }
+
+    @Test
+    void testFromInputStreamBelowHeapThreshold() {
+        byte[] data = Utils.initializedWith(512 * 3, 5);
+        DataView dataView = DataView.from(new ByteArrayInputStream(data), 512 * 3 + 1);
+        assertFalse(dataView instanceof FileDataView);
+        assertArrayEquals(data, dataView.getData());
+        assertThrows(VerifyException.class, () -> DataView.from(new ByteArrayInputStream(new byte[100]), 1024));
+    }
+
+    @Test
+    void testFromInputStreamSpillsToDisk() throws IOException {
+        byte[] data = new byte[512 * 5];
+        for (int i = 0; i < data.length; i++) {
+            data[i] = (byte) (i / 512);
+        }
+        Path spooled;
+        try(CachedFileDataView dataView = (CachedFileDataView) DataView.from(new ByteArrayInputStream(data), 512 * 2)) {
+            spooled = dataView.getPath();
+            assertEquals(5, dataView.getChunkCount());
+            assertEquals(512 * 2, dataView.getCacheBudget());
+            assertArrayEquals(data, dataView.getData());
+        }
+        assertFalse(Files.exists(spooled));
+    }
 }
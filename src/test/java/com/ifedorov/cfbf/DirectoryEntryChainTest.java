@@ -2,9 +2,11 @@ package com.ifedorov.cfbf;
 
 import com.google.common.collect.Lists;
 import com.ifedorov.cfbf.alloc.FAT;
+import com.ifedorov.cfbf.alloc.FATTest;
 import com.ifedorov.cfbf.alloc.FATtoDIFATFacade;
 import com.ifedorov.cfbf.stream.StreamHolder;
 import com.ifedorov.cfbf.stream.StreamRW;
+import org.junit.jupiter.api.BeforeEach;
 import org.junit.jupiter.api.Test;
 import org.junit.jupiter.api.extension.ExtendWith;
 import org.mockito.Mock;
@@ -25,6 +27,11 @@ class DirectoryEntryChainTest {
     @Mock Header header;
     @Mock FATtoDIFATFacade faTtoDIFATFacade;
 
+    @BeforeEach
+    void init() {
+        FATTest.stubFatSectorChain(faTtoDIFATFacade);
+    }
+
     @Test
     void testGetDirectoryEntry() {
         DataView rootView = DataView.empty();
@@ -81,6 +88,7 @@ class DirectoryEntryChainTest {
         when(sectors.sector(1)).thenReturn(firstSector);
         when(fat.buildChain(anyInt()))
                 .thenReturn(Lists.newArrayList(0, 1));
+        when(header.getSectorShift()).thenReturn(Header.SECTOR_SHIFT_VERSION_3_INT);
         DirectoryEntryChain directoryEntryChain = new DirectoryEntryChain(sectors, fat, header, streamHolder);
         StorageDirectoryEntry storage = directoryEntryChain.createStorage("storage", DirectoryEntry.ColorFlag.RED);
         assertEquals("storage", storage.getDirectoryEntryName());
@@ -98,12 +106,15 @@ class DirectoryEntryChainTest {
         Sector firstSector = Sector.from(DataView.from(new byte[512]), 1);
 //        zeroSector.subView(0, 512).writeAt(0, Utils.initializedWith(512, 1));
         when(sectors.sector(0)).thenReturn(zeroSector);
+        when(sectors.sector(1)).thenReturn(firstSector);
         when(sectors.allocate()).thenReturn(firstSector);
         when(fat.buildChain(anyInt()))
                 .thenReturn(Lists.newArrayList(0));
+        when(header.getSectorShift()).thenReturn(Header.SECTOR_SHIFT_VERSION_3_INT);
         DirectoryEntryChain directoryEntryChain = new DirectoryEntryChain(sectors, fat, header, streamHolder);
         StorageDirectoryEntry storage = directoryEntryChain.createStorage("storage", DirectoryEntry.ColorFlag.RED);
         verify(sectors, times(1)).allocate();
+        verify(sectors, times(1)).pin(1);
         assertEquals("storage", storage.getDirectoryEntryName());
         assertEquals(DirectoryEntry.ObjectType.Storage, storage.getObjectType());
         assertArrayEquals(storage.view.getData(), firstSector.subView(0, 128).getData());
@@ -2,6 +2,7 @@ package com.ifedorov.cfbf;
 
 import com.google.common.base.VerifyException;
 import com.ifedorov.cfbf.alloc.FAT;
+import com.ifedorov.cfbf.alloc.FATTest;
 import com.ifedorov.cfbf.alloc.FATtoDIFATFacade;
 import com.ifedorov.cfbf.stream.RegularStreamRW;
 import com.ifedorov.cfbf.stream.StreamHolder;
@@ -37,6 +38,7 @@ class DirectoryEntryTest {
 
     @BeforeEach
     void init() {
+        FATTest.stubFatSectorChain(faTtoDIFATFacade);
         data = new byte[128];
         data[DirectoryEntry.FLAG_POSITION.OBJECT_TYPE] = (byte) DirectoryEntry.ObjectType.Storage.code();
         data[DirectoryEntry.FLAG_POSITION.COLOR_FLAG] = (byte) DirectoryEntry.ColorFlag.BLACK.code();
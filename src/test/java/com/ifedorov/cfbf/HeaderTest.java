@@ -7,6 +7,7 @@ import org.apache.commons.lang3.ArrayUtils;
 import org.junit.jupiter.api.BeforeEach;
 import org.junit.jupiter.api.Test;
 
+import java.nio.ByteBuffer;
 import java.util.List;
 
 import static com.ifedorov.cfbf.Header.*;
@@ -55,9 +56,33 @@ class HeaderTest {
     }
 
     @Test
-    void testSupportsOnlyMajorVersion3() {
+    void testVersion4RequiresLargeSectors() {
+        System.arraycopy(Header.MAJOR_VERSION_4, 0, data, FLAG_POSITION.MAJOR_VERSION, 2);
+        System.arraycopy(Header.SECTOR_SHIFT_VERSION_4, 0, data, FLAG_POSITION.SECTOR_SHIFT, 2);
+        System.arraycopy(Utils.toBytesLE(3, 4), 0, data, FLAG_POSITION.NUMBER_OF_DIRECTORY_SECTORS, 4);
+        Header header = new Header(new DataView.SimpleDataView(data));
+        assertEquals(Header.Version.V4, header.getVersion());
+        assertEquals(4096, header.getSectorShift());
+        assertEquals(3, header.getNumberOfDirectorySectors());
+        assertEquals(4096, Header.sectorSizeOf(ByteBuffer.wrap(data)));
+    }
+
+    @Test
+    void testAcceptsConsistentMajorVersion4() {
+        System.arraycopy(Utils.toBytesLE(0x0004, 2), 0, data, FLAG_POSITION.MAJOR_VERSION, 2);
+        System.arraycopy(Utils.toBytesLE(0x000c, 2), 0, data, FLAG_POSITION.SECTOR_SHIFT, 2);
+        Header header = new Header(new DataView.SimpleDataView(data));
+        assertEquals(Header.Version.V4, header.getVersion());
+        assertEquals(4096, header.getSectorShift());
+    }
+
+    @Test
+    void testRejectsMajorVersionSectorShiftMismatch() {
         System.arraycopy(Utils.toBytesLE(0x0004, 2), 0, data, FLAG_POSITION.MAJOR_VERSION, 2);
         assertThrows(VerifyException.class, () -> new Header(DataView.from(data)));
+        System.arraycopy(Utils.toBytesLE(0x0003, 2), 0, data, FLAG_POSITION.MAJOR_VERSION, 2);
+        System.arraycopy(Utils.toBytesLE(0x000c, 2), 0, data, FLAG_POSITION.SECTOR_SHIFT, 2);
+        assertThrows(VerifyException.class, () -> new Header(new DataView.SimpleDataView(data)));
     }
 
     @Test
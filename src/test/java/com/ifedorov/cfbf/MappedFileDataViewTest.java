@@ -0,0 +1,175 @@
+package com.ifedorov.cfbf;
+
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.Arrays;
+
+import static com.ifedorov.cfbf.Header.HEADER_LENGTH;
+import static org.junit.jupiter.api.Assertions.*;
+
+class MappedFileDataViewTest {
+
+    @TempDir Path tempDir;
+
+    @Test
+    void testChunksAcrossSeveralWindows() throws IOException {
+        byte[] data = new byte[HEADER_LENGTH * 5];
+        for (int i = 0; i < 5; i++) {
+            System.arraycopy(Utils.initializedWith(HEADER_LENGTH, i), 0, data, i * HEADER_LENGTH, HEADER_LENGTH);
+        }
+        Path file = Files.write(tempDir.resolve("chunks.bin"), data);
+        try(MappedFileDataView dataView = MappedFileDataView.map(file, 2 * HEADER_LENGTH)) {
+            assertEquals(5, dataView.getChunkCount());
+            for (int i = 0; i < 5; i++) {
+                assertArrayEquals(Utils.initializedWith(HEADER_LENGTH, i), dataView.chunk(i).getData());
+            }
+            assertArrayEquals(Utils.initializedWith(10, 4), dataView.subView(4 * HEADER_LENGTH + 10, 4 * HEADER_LENGTH + 20).getData());
+            assertThrows(IndexOutOfBoundsException.class, () -> dataView.chunk(5));
+        }
+    }
+
+    @Test
+    void testWritesAndAllocationsDoNotTouchFile() throws IOException {
+        byte[] data = Utils.initializedWith(HEADER_LENGTH * 2, 1);
+        Path file = Files.write(tempDir.resolve("private.bin"), data);
+        try(MappedFileDataView dataView = MappedFileDataView.map(file)) {
+            dataView.chunk(1).writeAt(0, new byte[]{5, 5});
+            DataView allocated = dataView.allocate(HEADER_LENGTH);
+            allocated.writeAt(0, new byte[]{7});
+            assertEquals(3, dataView.getChunkCount());
+            assertArrayEquals(new byte[]{5, 5}, dataView.chunk(1).subView(0, 2).getData());
+            assertArrayEquals(new byte[]{7}, dataView.chunk(2).subView(0, 1).getData());
+        }
+        assertArrayEquals(data, Files.readAllBytes(file));
+    }
+
+    @Test
+    void testOpenCompoundFile() throws IOException {
+        byte[] regular = new byte[10000];
+        for (int i = 0; i < regular.length; i++) {
+            regular[i] = (byte) i;
+        }
+        CompoundFile compoundFile = new CompoundFile();
+        StorageDirectoryEntry storage = compoundFile.getRootStorage().addStorage("storage");
+        storage.addStream("regular", regular);
+        storage.addStream("mini", new byte[]{1, 2, 3});
+        Path file = tempDir.resolve("compound.cfb");
+        compoundFile.saveTo(file.toFile());
+
+        try(CompoundFile mapped = CompoundFile.open(file)) {
+            StorageDirectoryEntry mappedStorage = mapped.getRootStorage().findChild(entry -> "storage".equals(entry.getDirectoryEntryName()));
+            StreamDirectoryEntry mappedRegular = mappedStorage.findChild(entry -> "regular".equals(entry.getDirectoryEntryName()));
+            StreamDirectoryEntry mappedMini = mappedStorage.findChild(entry -> "mini".equals(entry.getDirectoryEntryName()));
+            assertArrayEquals(regular, mappedRegular.getStreamData());
+            assertArrayEquals(new byte[]{1, 2, 3}, mappedMini.getStreamData());
+            mappedStorage.addStream("added", new byte[]{4, 5});
+            StreamDirectoryEntry added = mappedStorage.findChild(entry -> "added".equals(entry.getDirectoryEntryName()));
+            assertArrayEquals(new byte[]{4, 5}, added.getStreamData());
+        }
+    }
+
+    @Test
+    void testCommitWritesOnlyModifiedAndAppendedChunks() throws IOException {
+        byte[] data = Utils.initializedWith(HEADER_LENGTH * 3, 1);
+        Path file = Files.write(tempDir.resolve("commit.bin"), data);
+        try(MappedFileDataView dataView = MappedFileDataView.map(file)) {
+            dataView.chunk(1).subView(2, 4).writeAt(0, new byte[]{5, 5});
+            dataView.allocate(HEADER_LENGTH).fill(new byte[]{7});
+            assertEquals(2, dataView.getDirtyChunkCount());
+            dataView.commit();
+            assertEquals(0, dataView.getDirtyChunkCount());
+        }
+        byte[] committed = Files.readAllBytes(file);
+        assertEquals(HEADER_LENGTH * 4, committed.length);
+        assertArrayEquals(new byte[]{1, 1, 5, 5, 1}, Arrays.copyOfRange(committed, HEADER_LENGTH, HEADER_LENGTH + 5));
+        assertArrayEquals(Utils.initializedWith(HEADER_LENGTH, 7), Arrays.copyOfRange(committed, HEADER_LENGTH * 3, HEADER_LENGTH * 4));
+    }
+
+    @Test
+    void testReadAsyncSeesUncommittedChanges() throws IOException {
+        byte[] regularData = new byte[20000];
+        for (int i = 0; i < regularData.length; i++) {
+            regularData[i] = (byte) (i % 251);
+        }
+        CompoundFile compoundFile = new CompoundFile();
+        compoundFile.getRootStorage().addStream("regular", regularData);
+        compoundFile.getRootStorage().addStream("mini", Utils.initializedWith(300, 3));
+        Path file = tempDir.resolve("async.cfb");
+        compoundFile.saveTo(file.toFile());
+
+        try(CompoundFile mapped = CompoundFile.open(file)) {
+            StreamDirectoryEntry regular = mapped.getRootStorage().findChild(entry -> "regular".equals(entry.getDirectoryEntryName()));
+            StreamDirectoryEntry mini = mapped.getRootStorage().findChild(entry -> "mini".equals(entry.getDirectoryEntryName()));
+            assertArrayEquals(regularData, regular.getStreamDataAsync().join().array());
+            regular.writeAt(1000, new byte[]{9, 9, 9});
+            mini.writeAt(100, new byte[]{8});
+            StreamDirectoryEntry added = mapped.getRootStorage().addStream("added", Utils.initializedWith(3000, 4));
+            assertArrayEquals(regular.getStreamData(), regular.getStreamDataAsync().join().array());
+            assertArrayEquals(regular.read(700, 15000), regular.readAsync(700, 15000).join().array());
+            assertArrayEquals(mini.getStreamData(), mini.getStreamDataAsync().join().array());
+            assertArrayEquals(Utils.initializedWith(3000, 4), added.getStreamDataAsync().join().array());
+        }
+    }
+
+    @Test
+    void testCopyStreamToChannel() throws IOException {
+        byte[] regularData = new byte[20000];
+        for (int i = 0; i < regularData.length; i++) {
+            regularData[i] = (byte) (i % 251);
+        }
+        CompoundFile compoundFile = new CompoundFile();
+        compoundFile.getRootStorage().addStream("regular", regularData);
+        compoundFile.getRootStorage().addStream("mini", Utils.initializedWith(300, 3));
+        Path file = tempDir.resolve("transfer.cfb");
+        compoundFile.saveTo(file.toFile());
+
+        try(CompoundFile mapped = CompoundFile.open(file)) {
+            StreamDirectoryEntry regular = mapped.getRootStorage().findChild(entry -> "regular".equals(entry.getDirectoryEntryName()));
+            StreamDirectoryEntry mini = mapped.getRootStorage().findChild(entry -> "mini".equals(entry.getDirectoryEntryName()));
+            regular.writeAt(1000, new byte[]{9, 9, 9});
+            mini.writeAt(100, new byte[]{8});
+            Path copy = tempDir.resolve("regular.bin");
+            try(FileChannel channel = FileChannel.open(copy, StandardOpenOption.CREATE, StandardOpenOption.WRITE)) {
+                regular.copyTo(channel);
+            }
+            assertArrayEquals(regular.getStreamData(), Files.readAllBytes(copy));
+            ByteArrayOutputStream miniCopy = new ByteArrayOutputStream();
+            mini.copyTo(miniCopy);
+            assertArrayEquals(mini.getStreamData(), miniCopy.toByteArray());
+        }
+    }
+
+    @Test
+    void testCommitCompoundFile() throws IOException {
+        CompoundFile compoundFile = new CompoundFile();
+        compoundFile.getRootStorage().addStream("regular", Utils.initializedWith(10000, 1));
+        compoundFile.getRootStorage().addStream("mini", new byte[]{1, 2, 3});
+        Path file = tempDir.resolve("compound.cfb");
+        compoundFile.saveTo(file.toFile());
+
+        MappedFileDataView dataView = MappedFileDataView.map(file);
+        try(CompoundFile mapped = new CompoundFile(dataView)) {
+            assertEquals(0, dataView.getDirtyChunkCount());
+            StreamDirectoryEntry regular = mapped.getRootStorage().findChild(entry -> "regular".equals(entry.getDirectoryEntryName()));
+            regular.writeAt(600, new byte[]{9, 9, 9});
+            assertEquals(1, dataView.getDirtyChunkCount());
+            mapped.getRootStorage().addStream("added", Utils.initializedWith(5000, 2));
+            mapped.commit();
+        }
+
+        CompoundFile reopened = new CompoundFile(DataView.from(Files.readAllBytes(file)));
+        StreamDirectoryEntry regular = reopened.getRootStorage().findChild(entry -> "regular".equals(entry.getDirectoryEntryName()));
+        StreamDirectoryEntry added = reopened.getRootStorage().findChild(entry -> "added".equals(entry.getDirectoryEntryName()));
+        StreamDirectoryEntry mini = reopened.getRootStorage().findChild(entry -> "mini".equals(entry.getDirectoryEntryName()));
+        assertArrayEquals(new byte[]{9, 9, 9}, regular.read(600, 603));
+        assertArrayEquals(Utils.initializedWith(5000, 2), added.getStreamData());
+        assertArrayEquals(new byte[]{1, 2, 3}, mini.getStreamData());
+    }
+}
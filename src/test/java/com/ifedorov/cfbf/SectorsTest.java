@@ -1,5 +1,8 @@
 package com.ifedorov.cfbf;
 
+import com.google.common.base.VerifyException;
+import com.google.common.collect.Lists;
+import com.ifedorov.cfbf.alloc.AllocationPolicy;
 import org.junit.jupiter.api.BeforeEach;
 import org.junit.jupiter.api.Test;
 import org.junit.jupiter.api.extension.*;
@@ -10,6 +13,9 @@ import java.lang.annotation.ElementType;
 import java.lang.annotation.Retention;
 import java.lang.annotation.RetentionPolicy;
 import java.lang.annotation.Target;
+import java.util.List;
+import java.util.stream.Collectors;
+import java.util.stream.IntStream;
 
 import static com.ifedorov.cfbf.Header.HEADER_LENGTH;
 import static com.ifedorov.cfbf.HeaderTest.dummyHeader;
@@ -69,6 +75,44 @@ public class SectorsTest {
         assertEquals(1024, backedDataView.getSize());
     }
 
+    @Test
+    void testAllocateContiguousRun() {
+        Sectors sectors = new Sectors(DataView.empty(), header);
+        for (int i = 0; i < 10; i++) {
+            sectors.allocate();
+        }
+        IntStream.of(1, 2, 3, 4, 6, 7, 9).forEach(sectors::markFree);
+        assertEquals(Lists.newArrayList(6, 7), positions(sectors.allocate(2)));
+        sectors.setAllocationPolicy(AllocationPolicy.FIRST_FIT);
+        assertEquals(Lists.newArrayList(1, 2), positions(sectors.allocate(2)));
+        assertEquals(Lists.newArrayList(9, 10, 11), positions(sectors.allocate(3)));
+        assertEquals(12, sectors.getNumberOfSectors());
+        assertEquals(Lists.newArrayList(3, 4), positions(sectors.allocate(2)));
+        assertTrue(sectors.allocate(0).isEmpty());
+    }
+
+    @Test
+    void testAllocationPolicy() {
+        Sectors sectors = new Sectors(DataView.empty(), header);
+        for (int i = 0; i < 4; i++) {
+            sectors.allocate();
+        }
+        IntStream.of(0, 1).forEach(sectors::markFree);
+        sectors.setAllocationPolicy(AllocationPolicy.APPEND_ONLY);
+        assertEquals(Lists.newArrayList(4, 5), positions(sectors.allocate(2)));
+        assertEquals(6, sectors.allocate().getPosition());
+        sectors.setAllocationPolicy((freePositions, numberOfPositions, count) -> new int[]{numberOfPositions + 1});
+        assertThrows(VerifyException.class, sectors::allocate);
+        sectors.setAllocationPolicy((freePositions, numberOfPositions, count) -> new int[]{2});
+        assertThrows(VerifyException.class, sectors::allocate);
+        sectors.setAllocationPolicy(AllocationPolicy.BEST_FIT);
+        assertEquals(Lists.newArrayList(0, 1), positions(sectors.allocate(2)));
+    }
+
+    private static List<Integer> positions(List<Sector> allocated) {
+        return allocated.stream().map(Sector::getPosition).collect(Collectors.toList());
+    }
+
     public static class SectorsDataResolver implements ParameterResolver {
         @Override
         public boolean supportsParameter(ParameterContext parameterContext, ExtensionContext extensionContext) throws ParameterResolutionException {
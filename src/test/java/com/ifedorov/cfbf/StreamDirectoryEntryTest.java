@@ -1,9 +1,14 @@
 package com.ifedorov.cfbf;
 
 import com.google.common.base.VerifyException;
+import org.apache.commons.lang3.ArrayUtils;
 import org.junit.jupiter.api.Assertions;
 import org.junit.jupiter.api.Test;
 
+import java.io.ByteArrayOutputStream;
+import java.nio.channels.Channels;
+import java.util.Arrays;
+
 import static org.junit.jupiter.api.Assertions.*;
 
 public class StreamDirectoryEntryTest {
@@ -40,6 +45,38 @@ public class StreamDirectoryEntryTest {
         assertArrayEquals(new byte[]{0, 1}, miniStream1.read(4095, 4097));
     }
 
+    @Test
+    void testReadAsyncInMemory() {
+        CompoundFile compoundFile = new CompoundFile();
+        StorageDirectoryEntry storage = compoundFile.getRootStorage().addStorage("test");
+        byte[] bytes = new byte[5000];
+        for (int i = 0; i < bytes.length; i++) {
+            bytes[i] = (byte) i;
+        }
+        StreamDirectoryEntry regular = storage.addStream("regular", bytes);
+        StreamDirectoryEntry mini = storage.addStream("mini", new byte[]{1, 2, 3, 4, 5, 6, 7});
+        assertArrayEquals(bytes, regular.getStreamDataAsync().join().array());
+        assertArrayEquals(regular.read(500, 1500), regular.readAsync(500, 1500).join().array());
+        assertArrayEquals(new byte[]{3, 4, 5}, mini.readAsync(2, 5).join().array());
+        assertEquals(0, storage.addStream("empty", new byte[0]).getStreamDataAsync().join().remaining());
+        assertThrows(VerifyException.class, () -> regular.readAsync(0, 5001));
+    }
+
+    @Test
+    void testCopyToWritesExactStreamSize() {
+        CompoundFile compoundFile = new CompoundFile();
+        StorageDirectoryEntry storage = compoundFile.getRootStorage().addStorage("test");
+        byte[] bytes = new byte[5000];
+        for (int i = 0; i < bytes.length; i++) {
+            bytes[i] = (byte) i;
+        }
+        ByteArrayOutputStream regular = new ByteArrayOutputStream();
+        storage.addStream("regular", bytes).copyTo(regular);
+        assertArrayEquals(bytes, regular.toByteArray());
+        ByteArrayOutputStream mini = new ByteArrayOutputStream();
+        storage.addStream("mini", new byte[]{1, 2, 3, 4, 5, 6, 7}).copyTo(Channels.newChannel(mini));
+        assertArrayEquals(new byte[]{1, 2, 3, 4, 5, 6, 7}, mini.toByteArray());
+    }
 
     @Test
     void testWriteAtMiniStream() {
@@ -115,6 +152,34 @@ public class StreamDirectoryEntryTest {
         assertArrayEquals(new byte[]{0}, mini.read(63, 64));
     }
 
+    @Test
+    void testAppendSpanningSeveralSectors() {
+        CompoundFile compoundFile = new CompoundFile();
+        byte[] initial = Utils.initializedWith(4100, 1);
+        byte[] appended = new byte[2000];
+        for (int i = 0; i < appended.length; i++) {
+            appended[i] = (byte) i;
+        }
+        StreamDirectoryEntry regular = compoundFile.getRootStorage().addStream("regular", initial);
+        regular.append(appended);
+        assertEquals(6100, regular.getStreamSize());
+        assertArrayEquals(appended, regular.read(4100, 6100));
+        assertArrayEquals(initial, regular.read(0, 4100));
+    }
+
+    @Test
+    void testStreamSizeUsesHighBitsOnlyInVersion4() {
+        StreamDirectoryEntry version3 = new CompoundFile().getRootStorage().addStream("regular", Utils.initializedWith(5000, 1));
+        version3.view.subView(DirectoryEntry.FLAG_POSITION.STREAM_SIZE + 4, DirectoryEntry.FLAG_POSITION.STREAM_SIZE + 8).writeAt(0, Utils.toBytesLE(1, 4));
+        assertEquals(5000, version3.getStreamSize());
+
+        StreamDirectoryEntry version4 = new CompoundFile(Header.Version.V4).getRootStorage().addStream("regular", Utils.initializedWith(5000, 1));
+        assertEquals(5000, version4.getStreamSize());
+        version4.view.subView(DirectoryEntry.FLAG_POSITION.STREAM_SIZE + 4, DirectoryEntry.FLAG_POSITION.STREAM_SIZE + 8).writeAt(0, Utils.toBytesLE(1, 4));
+        assertEquals((1L << 32) + 5000, version4.getStreamSize());
+        assertThrows(VerifyException.class, version4::getStreamData);
+    }
+
     @Test
     void testAppendWithMiniStreamChangeToRegularStream() {
         CompoundFile compoundFile = new CompoundFile();
@@ -126,4 +191,87 @@ public class StreamDirectoryEntryTest {
         assertArrayEquals(new byte[]{1}, regularStream.read(4095, 4096));
     }
 
+    @Test
+    void testSetStreamDataRewritesChainInPlace() {
+        CompoundFile compoundFile = new CompoundFile();
+        StreamDirectoryEntry regular = compoundFile.getRootStorage().addStream("regular", Utils.initializedWith(10000, 1));
+        StreamDirectoryEntry mini = compoundFile.getRootStorage().addStream("mini", Utils.initializedWith(1000, 2));
+        int regularStartingSector = regular.getStreamStartingSector();
+        int miniStartingSector = mini.getStreamStartingSector();
+        int size = size(compoundFile);
+        for (int i = 0; i < 100; i++) {
+            regular.setStreamData(Utils.initializedWith(10000 - i, i));
+            mini.setStreamData(Utils.initializedWith(1000 - i, i));
+        }
+        assertEquals(regularStartingSector, regular.getStreamStartingSector());
+        assertEquals(miniStartingSector, mini.getStreamStartingSector());
+        assertEquals(size, size(compoundFile));
+        assertArrayEquals(Utils.initializedWith(9901, 99), regular.getStreamData());
+        assertArrayEquals(Utils.initializedWith(901, 99), mini.getStreamData());
+
+        regular.setStreamData(Utils.initializedWith(5000, 3));
+        compoundFile.getRootStorage().addStream("tail", Utils.initializedWith(4096, 4));
+        assertEquals(size, size(compoundFile));
+        assertArrayEquals(Utils.initializedWith(5000, 3), regular.getStreamData());
+        regular.setStreamData(Utils.initializedWith(6000, 7));
+        assertEquals(size, size(compoundFile));
+        assertArrayEquals(Utils.initializedWith(6000, 7), regular.getStreamData());
+
+        mini.setStreamData(Utils.initializedWith(5000, 5));
+        regular.setStreamData(Utils.initializedWith(100, 6));
+        mini.setStreamData(new byte[0]);
+        CompoundFile reopened = new CompoundFile(DataView.from(bytes(compoundFile)));
+        assertArrayEquals(Utils.initializedWith(100, 6), reopened.getRootStorage().<StreamDirectoryEntry>findChild(entry -> "regular".equals(entry.getDirectoryEntryName())).getStreamData());
+        assertEquals(0, reopened.getRootStorage().<StreamDirectoryEntry>findChild(entry -> "mini".equals(entry.getDirectoryEntryName())).getStreamSize());
+        assertArrayEquals(Utils.initializedWith(4096, 4), reopened.getRootStorage().<StreamDirectoryEntry>findChild(entry -> "tail".equals(entry.getDirectoryEntryName())).getStreamData());
+    }
+
+    @Test
+    void testReservedStreamIsFilledWithoutFurtherAllocation() {
+        CompoundFile compoundFile = new CompoundFile();
+        byte[] data = new byte[20000];
+        for (int i = 0; i < data.length; i++) {
+            data[i] = (byte) (i * 31);
+        }
+        StreamDirectoryEntry reserved = compoundFile.getRootStorage().addStream("reserved", data.length);
+        assertEquals(0, reserved.getStreamSize());
+        assertThrows(IllegalStateException.class, () -> size(compoundFile));
+        reserved.append(Arrays.copyOfRange(data, 0, 500));
+        assertArrayEquals(Arrays.copyOfRange(data, 0, 500), reserved.getStreamData());
+        for (int i = 500; i < 5000; i += 500) {
+            reserved.append(Arrays.copyOfRange(data, i, i + 500));
+        }
+        int size = size(compoundFile);
+        for (int i = 5000; i < data.length; i += 500) {
+            reserved.append(Arrays.copyOfRange(data, i, i + 500));
+        }
+        assertEquals(size, size(compoundFile));
+
+        StreamDirectoryEntry moved = compoundFile.getRootStorage().addStream("moved", Utils.initializedWith(100, 1));
+        moved.reserve(8000);
+        moved.append(Utils.initializedWith(7900, 2));
+        CompoundFile reopened = new CompoundFile(DataView.from(bytes(compoundFile)));
+        assertArrayEquals(data, reopened.getRootStorage().<StreamDirectoryEntry>findChild(entry -> "reserved".equals(entry.getDirectoryEntryName())).getStreamData());
+        assertArrayEquals(ArrayUtils.addAll(Utils.initializedWith(100, 1), Utils.initializedWith(7900, 2)), reopened.getRootStorage().<StreamDirectoryEntry>findChild(entry -> "moved".equals(entry.getDirectoryEntryName())).getStreamData());
+    }
+
+    @Test
+    void testReservedStreamCanBeSetAtOnce() {
+        CompoundFile compoundFile = new CompoundFile();
+        compoundFile.getRootStorage().addStream("regular", 20000).setStreamData(Utils.initializedWith(20000, 1));
+        compoundFile.getRootStorage().addStream("mini", 20000).setStreamData(Utils.initializedWith(100, 2));
+        CompoundFile reopened = new CompoundFile(DataView.from(bytes(compoundFile)));
+        assertArrayEquals(Utils.initializedWith(20000, 1), reopened.getRootStorage().<StreamDirectoryEntry>findChild(entry -> "regular".equals(entry.getDirectoryEntryName())).getStreamData());
+        assertArrayEquals(Utils.initializedWith(100, 2), reopened.getRootStorage().<StreamDirectoryEntry>findChild(entry -> "mini".equals(entry.getDirectoryEntryName())).getStreamData());
+    }
+
+    private static int size(CompoundFile compoundFile) {
+        return bytes(compoundFile).length;
+    }
+
+    private static byte[] bytes(CompoundFile compoundFile) {
+        ByteArrayOutputStream os = new ByteArrayOutputStream();
+        compoundFile.saveTo(os);
+        return os.toByteArray();
+    }
 }
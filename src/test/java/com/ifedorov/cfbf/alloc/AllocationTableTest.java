@@ -49,6 +49,11 @@ class AllocationTableTest {
         assertTrue(Iterables.elementsEqual(Lists.newArrayList(0,1,2,5), allocationTable.buildChain(0)));
         assertEquals(3, allocationTable.buildChain(3).size());
         assertTrue(Iterables.elementsEqual(Lists.newArrayList(3,4,6), allocationTable.buildChain(3)));
+        Extents extents = allocationTable.buildExtents(0);
+        assertEquals(2, extents.getExtentCount());
+        assertEquals(4, extents.getSectorCount());
+        assertEquals(3, extents.getLength(0));
+        assertEquals(5, extents.getStart(1));
     }
 
     @Test
@@ -70,6 +75,69 @@ class AllocationTableTest {
         assertEquals(129, chain.size());
     }
 
+    @Test
+    void testEntriesAreDecodedOnceAndWrittenThrough() {
+        byte[] firstSector = new byte[16];
+        System.arraycopy(Utils.toBytesLE(1, 4), 0, firstSector, 0, 4);
+        System.arraycopy(Utils.ENDOFCHAIN_MARK, 0, firstSector, 4, 4);
+        System.arraycopy(Utils.FREESECT_MARK_OR_NOSTREAM, 0, firstSector, 8, 4);
+        System.arraycopy(Utils.FREESECT_MARK_OR_NOSTREAM, 0, firstSector, 12, 4);
+        when(sectors.sector(0)).thenReturn(Sector.from(new DataView.SimpleDataView(firstSector), 0));
+        AllocationTable allocationTable = new AllocationTable(sectors, Lists.newArrayList(0), 16);
+        verify(sectors, times(1)).sector(0);
+        assertTrue(Iterables.elementsEqual(Lists.newArrayList(0, 1), allocationTable.buildChain(0)));
+        assertTrue(Iterables.elementsEqual(Lists.newArrayList(0, 1), allocationTable.buildChain(0)));
+        verify(sectors, times(1)).sector(0);
+        allocationTable.registerSector(2, 1);
+        assertTrue(Iterables.elementsEqual(Lists.newArrayList(0, 1, 2), allocationTable.buildChain(0)));
+        assertEquals(2, Utils.toInt(new DataView.SimpleDataView(firstSector).subView(4, 8).getData()));
+        assertEquals(Utils.ENDOFCHAIN_MARK_INT, Utils.toInt(new DataView.SimpleDataView(firstSector).subView(8, 12).getData()));
+    }
+
+    @Test
+    void testRegisterChainWritesEachRunOncePerFatSector() {
+        byte[] firstSector = Utils.initializedWith(16, Utils.FREESECT_MARK_OR_NOSTREAM);
+        byte[] secondSector = Utils.initializedWith(16, Utils.FREESECT_MARK_OR_NOSTREAM);
+        when(sectors.sector(0)).thenReturn(Sector.from(new DataView.SimpleDataView(firstSector), 0));
+        when(sectors.sector(1)).thenReturn(Sector.from(new DataView.SimpleDataView(secondSector), 1));
+        AllocationTable allocationTable = new AllocationTable(sectors, Lists.newArrayList(0, 1), 16);
+        allocationTable.registerChain(new int[]{1, 2, 3, 4, 6}, null);
+        verify(sectors, times(2)).sector(0);
+        verify(sectors, times(3)).sector(1);
+        assertTrue(Iterables.elementsEqual(Lists.newArrayList(1, 2, 3, 4, 6), allocationTable.buildChain(1)));
+        assertEquals(6, Utils.toInt(new DataView.SimpleDataView(secondSector).subView(0, 4).getData()));
+        assertEquals(Utils.FREESECT_MARK_OR_NOSTREAM_INT, Utils.toInt(new DataView.SimpleDataView(secondSector).subView(4, 8).getData()));
+        assertEquals(Utils.ENDOFCHAIN_MARK_INT, Utils.toInt(new DataView.SimpleDataView(secondSector).subView(8, 12).getData()));
+        allocationTable.registerChain(new int[]{7}, 6);
+        assertTrue(Iterables.elementsEqual(Lists.newArrayList(1, 2, 3, 4, 6, 7), allocationTable.buildChain(1)));
+    }
+
+    @Test
+    void testExtentsAreCachedUntilChainChanges() {
+        Sectors sectors = new Sectors(DataView.empty(), header);
+        AllocationTable allocationTable = new AllocationTable(sectors, Lists.newArrayList(), header.getSectorShift());
+        int first = sectors.allocate().getPosition();
+        int second = sectors.allocate().getPosition();
+        allocationTable.registerSector(first, null);
+        allocationTable.registerSector(second, first);
+        Extents extents = allocationTable.buildExtents(first);
+        assertSame(extents, allocationTable.buildExtents(first));
+        int third = sectors.allocate().getPosition();
+        allocationTable.registerSector(third, second);
+        assertSame(extents, allocationTable.buildExtents(first));
+        assertEquals(3, extents.getSectorCount());
+        assertEquals(third, extents.getLastPosition());
+        allocationTable.truncateChain(first, 1);
+        Extents truncated = allocationTable.buildExtents(first);
+        assertNotSame(extents, truncated);
+        assertEquals(1, truncated.getSectorCount());
+        allocationTable.freeChain(first);
+        allocationTable.registerSector(first, null);
+        allocationTable.registerSector(third, first);
+        assertNotSame(truncated, allocationTable.buildExtents(first));
+        assertEquals(2, allocationTable.buildExtents(first).getSectorCount());
+    }
+
     @Test
     void testShouldReturnEmptyListIfFirstSectorPositionIsEndOfChain() {
         Sectors sectors = new Sectors(DataView.empty(), header);
@@ -106,8 +106,13 @@ class DIFATTest {
         IntStream.range(0, 126).boxed().forEach((val) -> firstSector.subView(val * 4, (val + 1) * 4).writeAt(0, Utils.toBytesLE(val, 4)));
 
         DIFAT difat = new DIFAT(sectors, header, faTtoDIFATFacade);
+        SectorChain fatSectorChain = difat.getFatSectorChain();
+        assertEquals(126, fatSectorChain.size());
         difat.registerFATSector(126);
         difat.registerFATSector(127);
+        assertSame(fatSectorChain, difat.getFatSectorChain());
+        assertEquals(128, fatSectorChain.size());
+        assertEquals(127, fatSectorChain.getLastPosition());
 
         verify(faTtoDIFATFacade, times(1)).registerDifatSectorInFAT(1);
         assertEquals(126, Utils.toInt(firstSector.subView(504, 508).getData()));
@@ -120,6 +125,7 @@ class DIFATTest {
         DataView rootView = DataView.empty();
         Header header = Header.empty(rootView.allocate(Header.HEADER_LENGTH));
         Sectors sectors = new Sectors(rootView, header);
+        FATTest.stubFatSectorChain(faTtoDIFATFacade);
         FAT fat = new FAT(sectors, header, faTtoDIFATFacade);
         DIFAT difat = new DIFAT(sectors, header, faTtoDIFATFacade);
         IntStream.range(0, DIFAT_ENTRIES_LIMIT_IN_HEADER + 2).forEach(i -> difat.registerFATSector(i));
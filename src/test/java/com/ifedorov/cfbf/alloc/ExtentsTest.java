@@ -0,0 +1,62 @@
+package com.ifedorov.cfbf.alloc;
+
+import com.google.common.base.VerifyException;
+import com.google.common.collect.Lists;
+import org.junit.jupiter.api.Test;
+
+import java.util.List;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class ExtentsTest {
+
+    @Test
+    void testContiguousSectorsAreCollapsed() {
+        Extents extents = Extents.of(Lists.newArrayList(3, 4, 5, 9, 10, 2));
+        assertEquals(3, extents.getExtentCount());
+        assertEquals(6, extents.getSectorCount());
+        assertEquals(3, extents.getStart(0));
+        assertEquals(3, extents.getLength(0));
+        assertEquals(9, extents.getStart(1));
+        assertEquals(2, extents.getLength(1));
+        assertEquals(2, extents.getStart(2));
+        assertEquals(5, extents.getFirstIndex(2));
+        assertEquals(1, extents.findExtent(4));
+        assertEquals(10, extents.getPosition(4));
+        assertEquals(2, extents.getLastPosition());
+        assertThrows(IndexOutOfBoundsException.class, () -> extents.getPosition(6));
+    }
+
+    @Test
+    void testForEachRun() {
+        Extents extents = Extents.of(Lists.newArrayList(3, 4, 5, 9, 10, 2));
+        List<long[]> runs = Lists.newArrayList();
+        extents.forEachRun(512, 600, 2600, (firstSector, offset, positionInStream, length) -> runs.add(new long[]{firstSector, offset, positionInStream, length}));
+        assertEquals(3, runs.size());
+        assertArrayEquals(new long[]{4, 88, 600, 936}, runs.get(0));
+        assertArrayEquals(new long[]{9, 0, 1536, 1024}, runs.get(1));
+        assertArrayEquals(new long[]{2, 0, 2560, 40}, runs.get(2));
+        assertThrows(VerifyException.class, () -> extents.forEachRun(512, 0, 3073, (firstSector, offset, positionInStream, length) -> {}));
+    }
+
+    @Test
+    void testForEachRunBeyondTwoGigabytes() {
+        Extents extents = new Extents();
+        for (int i = 0; i < 600000; i++) {
+            extents.add(10 + i);
+        }
+        extents.add(5);
+        long streamSize = 600001L * 4096;
+        List<long[]> runs = Lists.newArrayList();
+        extents.forEachRun(4096, 100, streamSize, (firstSector, offset, positionInStream, length) -> runs.add(new long[]{firstSector, offset, positionInStream, length}));
+        int sectorsInRun = Integer.MAX_VALUE / 4096;
+        assertEquals(3, runs.size());
+        assertArrayEquals(new long[]{10, 100, 100, (long) sectorsInRun * 4096 - 100}, runs.get(0));
+        assertArrayEquals(new long[]{10 + sectorsInRun, 0, (long) sectorsInRun * 4096, (600000L - sectorsInRun) * 4096}, runs.get(1));
+        assertArrayEquals(new long[]{5, 0, 600000L * 4096, 4096}, runs.get(2));
+
+        runs.clear();
+        extents.forEachRun(4096, (1L << 31) + 10, (1L << 31) + 20, (firstSector, offset, positionInStream, length) -> runs.add(new long[]{firstSector, offset, positionInStream, length}));
+        assertArrayEquals(new long[]{10 + 524288, 10, (1L << 31) + 10, 10}, runs.get(0));
+    }
+}
@@ -3,6 +3,7 @@ package com.ifedorov.cfbf.alloc;
 import com.google.common.collect.Lists;
 import com.ifedorov.cfbf.*;
 import org.junit.jupiter.api.Assertions;
+import org.junit.jupiter.api.BeforeEach;
 import org.junit.jupiter.api.Test;
 import org.junit.jupiter.api.extension.ExtendWith;
 import org.mockito.Mock;
@@ -13,12 +14,28 @@ import java.util.stream.Collectors;
 import java.util.stream.IntStream;
 
 import static org.junit.jupiter.api.Assertions.*;
+import static org.mockito.ArgumentMatchers.anyInt;
+import static org.mockito.Mockito.lenient;
 
 @ExtendWith(MockitoExtension.class)
 public class FATTest {
 
     @Mock FATtoDIFATFacade faTtoDIFATFacade;
 
+    public static void stubFatSectorChain(FATtoDIFATFacade faTtoDIFATFacade) {
+        SectorChain fatSectorChain = new SectorChain();
+        lenient().when(faTtoDIFATFacade.getFatSectorChain()).thenReturn(fatSectorChain);
+        lenient().doAnswer(invocation -> {
+            fatSectorChain.addPosition(invocation.getArgument(0));
+            return null;
+        }).when(faTtoDIFATFacade).registerFatSectorInDIFAT(anyInt());
+    }
+
+    @BeforeEach
+    void init() {
+        stubFatSectorChain(faTtoDIFATFacade);
+    }
+
     @Test
     void shouldSetNumberOfFATSectorsOnHeader() {
         DataView rootView = DataView.empty();
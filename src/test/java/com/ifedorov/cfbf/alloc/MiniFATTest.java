@@ -3,6 +3,7 @@ package com.ifedorov.cfbf.alloc;
 import com.ifedorov.cfbf.DataView;
 import com.ifedorov.cfbf.Header;
 import com.ifedorov.cfbf.Sectors;
+import org.junit.jupiter.api.BeforeEach;
 import org.junit.jupiter.api.Test;
 import org.junit.jupiter.api.extension.ExtendWith;
 import org.mockito.Mock;
@@ -15,6 +16,10 @@ import static org.junit.jupiter.api.Assertions.*;
 class MiniFATTest {
     @Mock
     FATtoDIFATFacade faTtoDIFATFacade;
+    @BeforeEach
+    void init() {
+        FATTest.stubFatSectorChain(faTtoDIFATFacade);
+    }
     @Test
     void shouldSetNumberOfMiniFATSectorsOnHeader() {
         DataView rootView = DataView.empty();
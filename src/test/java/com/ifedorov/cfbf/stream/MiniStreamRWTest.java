@@ -2,6 +2,7 @@ package com.ifedorov.cfbf.stream;
 
 import com.google.common.collect.Lists;
 import com.ifedorov.cfbf.*;
+import com.ifedorov.cfbf.alloc.Extents;
 import com.ifedorov.cfbf.alloc.FAT;
 import com.ifedorov.cfbf.alloc.MiniFAT;
 import org.apache.commons.lang3.ArrayUtils;
@@ -19,6 +20,7 @@ import java.util.stream.StreamSupport;
 import static com.ifedorov.cfbf.Header.HEADER_LENGTH;
 import static com.ifedorov.cfbf.stream.MiniStreamRW.MINI_STREAM_CHUNK_SIZE;
 import static org.junit.jupiter.api.Assertions.*;
+import static org.mockito.AdditionalMatchers.aryEq;
 import static org.mockito.Mockito.*;
 
 @ExtendWith(MockitoExtension.class)
@@ -37,7 +39,7 @@ class MiniStreamRWTest {
 
     @Test
     void testRead() {
-        when(miniFAT.buildChain(0)).thenReturn(Lists.newArrayList(0,1,2,3,4,5,6,7,8,9));
+        when(miniFAT.buildExtents(0)).thenReturn(Extents.of(Lists.newArrayList(0,1,2,3,4,5,6,7,8,9)));
         byte[] firstSectorData = new byte[HEADER_LENGTH];
         System.arraycopy(Utils.initializedWith(MINI_STREAM_CHUNK_SIZE, 0), 0, firstSectorData, 0, 64);
         System.arraycopy(Utils.initializedWith(MINI_STREAM_CHUNK_SIZE, 1), 0, firstSectorData, 64, 64);
@@ -53,11 +55,12 @@ class MiniStreamRWTest {
         Sector secondSector = Sector.from(DataView.from(secondSectorData), 1);
         when(sectors.sector(0)).thenReturn(firstSector);
         when(sectors.sector(1)).thenReturn(secondSector);
-        when(fat.buildChain(0)).thenReturn(Lists.newArrayList(0, 1));
+        doCallRealMethod().when(sectors).read(anyInt(), anyInt(), any());
+        when(fat.buildExtents(0)).thenReturn(Extents.of(Lists.newArrayList(0, 1)));
         MiniStreamRW miniStreamRW = new MiniStreamRW(miniFAT, fat, 0, 516, sectors, header);
         byte[] result = miniStreamRW.read(0, 516);
         assertEquals(516, result.length);
-        verify(miniFAT, times(1)).buildChain(0);
+        verify(miniFAT, times(1)).buildExtents(0);
         assertArrayEquals(Utils.initializedWith(MINI_STREAM_CHUNK_SIZE, 0), ArrayUtils.subarray(result, 0, 64));
         assertArrayEquals(Utils.initializedWith(MINI_STREAM_CHUNK_SIZE, 1), ArrayUtils.subarray(result, 64, 128));
         assertArrayEquals(Utils.initializedWith(MINI_STREAM_CHUNK_SIZE, 2), ArrayUtils.subarray(result, 128, 192));
@@ -78,15 +81,7 @@ class MiniStreamRWTest {
         miniStreamRW.write(data);
         verify(fat, times(1)).registerSector(0, null);
         verify(fat, times(1)).registerSector(1, 0);
-        verify(miniFAT, times(1)).registerSector(0, null);
-        verify(miniFAT, times(1)).registerSector(1, 0);
-        verify(miniFAT, times(1)).registerSector(2, 1);
-        verify(miniFAT, times(1)).registerSector(3, 2);
-        verify(miniFAT, times(1)).registerSector(4, 3);
-        verify(miniFAT, times(1)).registerSector(5, 4);
-        verify(miniFAT, times(1)).registerSector(6, 5);
-        verify(miniFAT, times(1)).registerSector(7, 6);
-        verify(miniFAT, times(1)).registerSector(8, 7);
+        verify(miniFAT, times(1)).registerChain(aryEq(new int[]{0, 1, 2, 3, 4, 5, 6, 7, 8}), isNull());
         Sector firstSector = sectors.sector(0);
         assertArrayEquals(Utils.initializedWith(MINI_STREAM_CHUNK_SIZE, 0), firstSector.subView(0, 64).getData());
         assertArrayEquals(Utils.initializedWith(MINI_STREAM_CHUNK_SIZE, 1), firstSector.subView(64, 128).getData());
@@ -107,21 +102,13 @@ class MiniStreamRWTest {
         Sectors sectors = new Sectors(DataView.empty(), header);
         sectors.allocate();
         sectors.allocate();
-        when(fat.buildChain(0)).thenReturn(Lists.newArrayList(0,1));
+        when(fat.buildExtents(0)).thenReturn(Extents.of(Lists.newArrayList(0,1)));
         MiniStreamRW miniStreamRW = new MiniStreamRW(miniFAT, fat, 0, 10 * header.getMiniSectorShift(), sectors, header);
         byte[] data = new byte[520];
         IntStream.range(0, 520).forEach(val -> data[val] = (byte)(val/64));
         miniStreamRW.write(data);
         verify(fat, times(1)).registerSector(2, 1);
-        verify(miniFAT, times(1)).registerSector(10, null);
-        verify(miniFAT, times(1)).registerSector(11, 10);
-        verify(miniFAT, times(1)).registerSector(12, 11);
-        verify(miniFAT, times(1)).registerSector(13, 12);
-        verify(miniFAT, times(1)).registerSector(14, 13);
-        verify(miniFAT, times(1)).registerSector(15, 14);
-        verify(miniFAT, times(1)).registerSector(16, 15);
-        verify(miniFAT, times(1)).registerSector(17, 16);
-        verify(miniFAT, times(1)).registerSector(18, 17);
+        verify(miniFAT, times(1)).registerChain(aryEq(new int[]{10, 11, 12, 13, 14, 15, 16, 17, 18}), isNull());
         Sector sector1 = sectors.sector(1);
         //should be filled with FREESECT since it is default value for a newly allocated sector
         assertArrayEquals(Utils.initializedWith(MINI_STREAM_CHUNK_SIZE, Utils.FREESECT_MARK_OR_NOSTREAM), sector1.subView(0, 64).getData());
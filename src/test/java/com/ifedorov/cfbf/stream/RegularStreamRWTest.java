@@ -2,6 +2,7 @@ package com.ifedorov.cfbf.stream;
 
 import com.google.common.collect.Lists;
 import com.ifedorov.cfbf.*;
+import com.ifedorov.cfbf.alloc.Extents;
 import com.ifedorov.cfbf.alloc.FAT;
 import org.apache.commons.lang3.ArrayUtils;
 import org.junit.jupiter.api.BeforeEach;
@@ -13,6 +14,7 @@ import org.mockito.junit.jupiter.MockitoExtension;
 
 import static com.ifedorov.cfbf.Header.HEADER_LENGTH;
 import static org.junit.jupiter.api.Assertions.*;
+import static org.mockito.AdditionalMatchers.aryEq;
 import static org.mockito.Mockito.*;
 
 @ExtendWith(MockitoExtension.class)
@@ -30,7 +32,8 @@ class RegularStreamRWTest {
     @Test
     void testRead() {
 
-        when(fat.buildChain(1)).thenReturn(Lists.newArrayList(1,2,3));
+        when(fat.buildExtents(1)).thenReturn(Extents.of(Lists.newArrayList(1,2,3)));
+        doCallRealMethod().when(sectors).read(anyInt(), anyInt(), any());
         when(sectors.sector(1))
                 .thenReturn(Sector.from(DataView.from(Utils.initializedWith(HEADER_LENGTH, 1)), 1));
         when(sectors.sector(2))
@@ -43,7 +46,7 @@ class RegularStreamRWTest {
         assertArrayEquals(Utils.initializedWith(HEADER_LENGTH, 1), ArrayUtils.subarray(result, 0, 512));
         assertArrayEquals(Utils.initializedWith(HEADER_LENGTH, 2), ArrayUtils.subarray(result, 512, 1024));
         assertArrayEquals(Utils.initializedWith(276, 3), ArrayUtils.subarray(result, 1024, 1300));
-        verify(fat, times(1)).buildChain(1);
+        verify(fat, times(1)).buildExtents(1);
         verify(sectors, times(1)).sector(1);
         verify(sectors, times(1)).sector(2);
         verify(sectors, times(1)).sector(3);
@@ -59,8 +62,7 @@ class RegularStreamRWTest {
         when(third.getPosition()).thenReturn(2);
         Sector fourth = mock(Sector.class);
         when(fourth.getPosition()).thenReturn(3);
-        when(sectors.allocate())
-                .thenReturn(first).thenReturn(second).thenReturn(third).thenReturn(fourth);
+        when(sectors.allocate(4)).thenReturn(Lists.newArrayList(first, second, third, fourth));
         RegularStreamRW regularStreamRW = new RegularStreamRW(fat, sectors, header);
         byte[] data = new byte[2000];
         regularStreamRW.write(data);
@@ -71,10 +73,7 @@ class RegularStreamRWTest {
         ArgumentCaptor<byte[]> valueCaptor = ArgumentCaptor.forClass(byte[].class);
         verify(fourth, times(1)).writeAt(eq(0), valueCaptor.capture());
         assertEquals(464, valueCaptor.getValue().length);
-        verify(sectors, times(4)).allocate();
-        verify(fat, times(1)).registerSector(0, null);
-        verify(fat, times(1)).registerSector(1, 0);
-        verify(fat, times(1)).registerSector(2, 1);
-        verify(fat, times(1)).registerSector(3, 2);
+        verify(sectors, times(1)).allocate(4);
+        verify(fat, times(1)).registerChain(aryEq(new int[]{0, 1, 2, 3}), isNull());
     }
 }
\ No newline at end of file